@@ -0,0 +1,92 @@
+(ns uglyboids.bench.async
+  "Overlapping vision with screenshot requests. Against a stand-in
+   server that takes delay-ms over each reply, the blocking robot
+   waits for each screenshot and then processes it; the asynchronous
+   robot asks for the next screenshot before processing the current
+   one.
+   lein with-profile +bench run -m uglyboids.bench.async [delay-ms]"
+  (:use uglyboids.bench.fixtures
+        [uglyboids.vision :only [image-from-bytes scene-from-image]])
+  (:import (ab.framework.ai AsyncClientActionRobot ClientActionRobot)
+           (ab.framework.server StandInServer)
+           (java.io ByteArrayOutputStream)
+           (java.util.concurrent CompletableFuture)
+           (javax.imageio ImageIO)))
+
+(defn- png-bytes
+  []
+  (let [bs (ByteArrayOutputStream.)]
+    (ImageIO/write ^java.awt.image.RenderedImage (synthetic-frame 14)
+                   "png" bs)
+    (.toByteArray bs)))
+
+(defn- process!
+  "What the agent does with a screenshot: decode it and find the scene."
+  [^bytes bs]
+  (with-out-str-result
+    (scene-from-image (image-from-bytes bs))))
+
+(defn blocking-ms
+  [port n]
+  (let [robot (ClientActionRobot. "localhost" (int port) true)
+        t0 (System/nanoTime)]
+    (dotimes [_ n]
+      (process! (.screenShotBytes robot)))
+    (/ (- (System/nanoTime) t0) 1e6 n)))
+
+(defn pipelined-ms
+  [port n]
+  (let [robot (AsyncClientActionRobot. "localhost" (int port))
+        t0 (System/nanoTime)]
+    (loop [i 0
+           ^CompletableFuture next (.screenShotBytes robot)]
+      (when (< i n)
+        (let [bs (.get next)
+              ;; ask for the following one before the work
+              following (when (< (inc i) n) (.screenShotBytes robot))]
+          (process! bs)
+          (recur (inc i) following))))
+    (.close robot)
+    (/ (- (System/nanoTime) t0) 1e6 n)))
+
+(defn burst-ms
+  "Wall time for n state-info requests, all sent before any reply is
+   read, with the replies checked to belong to their requests."
+  [port n]
+  (let [robot (AsyncClientActionRobot. "localhost" (int port))
+        t0 (System/nanoTime)
+        fs (doall (for [i (range n)]
+                    (if (even? i)
+                      (.getStateInfo robot)
+                      (.getConfiguration robot (str "team-" i)))))
+        ok? (every? true?
+                    (map-indexed
+                     (fn [i ^CompletableFuture f]
+                       (let [r (.get f)]
+                         (if (even? i)
+                           (instance? ab.framework.other.StateInfo r)
+                           (= (str "team-" i)
+                              (.getPlayer_id
+                               ^ab.framework.player.Configuration r)))))
+                     fs))]
+    (.close robot)
+    [(/ (- (System/nanoTime) t0) 1e6) ok?]))
+
+(defn -main
+  [& args]
+  (let [delay-ms (if (seq args) (Long/parseLong (first args)) 100)
+        png (png-bytes)
+        server (.start (.setDelay (StandInServer. 0 png) delay-ms))
+        port (.getPort server)
+        n 10]
+    ;; warm up vision
+    (dotimes [_ 5] (process! png))
+    (println "server delay" delay-ms "ms; work per frame"
+             (format "%.1f ms" (median-ms 5 #(process! png))))
+    (println (format "blocking   %8.1f ms per frame" (blocking-ms port n)))
+    (println (format "pipelined  %8.1f ms per frame" (pipelined-ms port n)))
+    (let [[ms ok?] (burst-ms port 8)]
+      (println (format "8 outstanding requests %8.1f ms, replies matched: %s"
+                       ms ok?)))
+    (.close server))
+  (shutdown-agents))
@@ -0,0 +1,77 @@
+(ns uglyboids.bench.contacts
+  "Allocation and time of contact processing: simulates every
+   candidate shot on level 1-2, rewinding in between, and reports the
+   bytes allocated by the simulating thread and the collector time.
+   lein with-profile +bench run -m uglyboids.bench.contacts"
+  (:use uglyboids.core
+        uglyboids.bench.fixtures)
+  (:require uglyboids.levels.level-1-2)
+  (:import (java.lang.management ManagementFactory
+                                 GarbageCollectorMXBean)))
+
+(def level-scene
+  (assoc uglyboids.levels.level-1-2/level :world-scale 1.0))
+
+(defn- allocated-bytes
+  "Bytes allocated so far by the current thread."
+  []
+  (let [mx ^com.sun.management.ThreadMXBean
+        (ManagementFactory/getThreadMXBean)]
+    (.getThreadAllocatedBytes mx (.getId (Thread/currentThread)))))
+
+(defn- gc-ms
+  []
+  (reduce + (for [^GarbageCollectorMXBean gc
+                  (ManagementFactory/getGarbageCollectorMXBeans)]
+              (.getCollectionTime gc))))
+
+(defn simulate-all
+  "Effects of each shot, simulated in full from the snapshot snap (or,
+   with settle?, stopping once the scene settles)."
+  [shots snap & [settle?]]
+  (binding [*settle-window* (when settle? *settle-window*)
+            *shot-budget-ms* 60000]
+    (doall (for [shot shots]
+             (let [effects (with-out-str-result (simulate-shot! shot))]
+               (restore-world! snap)
+               effects)))))
+
+(defn- outcome
+  [effects]
+  (select-keys effects [:pigs-done :pig-damage :blocks-gone]))
+
+(defn -main
+  [& args]
+  (reset! scene level-scene)
+  (setup-world! level-scene)
+  (let [snap (snapshot-world)
+        shots (with-out-str-result
+                (doall (for [{:keys [pt]} (poss-targets)
+                             direct? [true false]]
+                         (shot-at pt direct? 0.9))))
+        rounds 10]
+    ;; warm up
+    (dotimes [_ 3] (simulate-all shots snap))
+    (let [b0 (allocated-bytes)
+          g0 (gc-ms)
+          t0 (System/nanoTime)
+          effects (last (repeatedly rounds #(simulate-all shots snap)))
+          t1 (System/nanoTime)
+          g1 (gc-ms)
+          b1 (allocated-bytes)
+          n (* rounds (count shots))]
+      (println "shots:" (count shots) " rounds:" rounds)
+      (println (format "allocated per shot  %9.1f KB"
+                       (/ (- b1 b0) 1024.0 n)))
+      (println (format "time per shot       %9.3f ms"
+                       (/ (- t1 t0) 1e6 n)))
+      (println (format "gc time, total      %9d ms" (- g1 g0)))
+      (doseq [e effects]
+        (println "  " (dissoc e :events)))
+      (let [settled (simulate-all shots snap true)]
+        (println "stopping once settled changes the effects of"
+                 (count (remove true? (map #(= (outcome %1) (outcome %2))
+                                           effects settled)))
+                 "of" (count shots) "shots, saving"
+                 (reduce + (keep :steps-saved settled)) "steps"))))
+  (shutdown-agents))
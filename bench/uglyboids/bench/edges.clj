@@ -0,0 +1,37 @@
+(ns uglyboids.bench.edges
+  "Shape fitting of packed blobs, which takes edge points and segment
+   extrema from primitive arrays, against the sequence path it
+   replaces, on the blobs of the given screenshots (or synthetic
+   frames): times each. That both fit the same geometry is checked by
+   uglyboids.vision.shape-detection-test.
+   lein with-profile +bench run -m uglyboids.bench.edges [png ...]"
+  (:use uglyboids.bench.fixtures
+        [uglyboids.physics-params :only [ground-level]]
+        [uglyboids.vision.shape-detection :only [shape-from-coords]])
+  (:require [uglyboids.vision :as vision]))
+
+(defn fitted-blobs
+  "The blobs of img that shape-from-coords fits, as vision finds them,
+   with :coords as PackedCoords."
+  [img]
+  (remove #(#{:ground :pig :red-bird :blue-bird :yellow-bird} (:type %))
+          (with-out-str-result
+            (doall (for [b (vision/identify-shapes img)]
+                     (do @(:geom b) b))))))
+
+(defn fit
+  "The geometry shape-from-blob would fit to blob, from coords."
+  [{:keys [type x-range y-range]} coords]
+  (if (#{:static-surface :static-wood} type)
+    (shape-from-coords coords false x-range y-range ground-level type)
+    (shape-from-coords coords true x-range y-range vision/max-y type)))
+
+(defn -main
+  [& paths]
+  (doseq [[name img] (frames paths)
+          :let [blobs (fitted-blobs img)]]
+    (println name (count blobs) "blobs")
+    (println (format "  arrays %8.2f ms, sequences %8.2f ms"
+                     (median-ms 9 #(doseq [b blobs] (fit b (:coords b))))
+                     (median-ms 9 #(doseq [b blobs] (fit b (seq (:coords b))))))))
+  (shutdown-agents))
@@ -0,0 +1,183 @@
+(ns uglyboids.bench.fixtures
+  "Frames and timing helpers for benchmarks. The repository does not
+   ship level screenshots, so frames can also be drawn synthetically
+   from the palette in uglyboids.vision.params."
+  (:use [uglyboids.vision.params :only [object-params]]
+        [uglyboids.physics-params :only [px-width px-height ground-level]])
+  (:import (java.awt Color Polygon)
+           (java.awt.image BufferedImage)
+           (java.io File)
+           (java.lang.management ManagementFactory)
+           (javax.imageio ImageIO)))
+
+(defn- color-of
+  ([type] (color-of type 0))
+  ([type i]
+     (let [[r g b] (nth (:colors (object-params type)) i)]
+       (Color. (int r) (int g) (int b)))))
+
+(defn synthetic-frame
+  "A screenshot-like frame: sky, ground, a static hill, the slingshot
+   with birds, and n-towers stone/glass/wood towers each topped by a
+   pig. Drawn as TYPE_3BYTE_BGR, which is what ImageIO gives for PNG
+   screenshots."
+  [n-towers]
+  (let [img (BufferedImage. px-width px-height BufferedImage/TYPE_3BYTE_BGR)
+        g (.createGraphics img)]
+    (doto g
+      (.setColor (color-of :sky))
+      (.fillRect 0 0 px-width px-height)
+      (.setColor (color-of :ground))
+      (.fillRect 0 ground-level px-width (- px-height ground-level))
+      (.setColor (color-of :static-surface))
+      (.fillPolygon (Polygon. (int-array [700 1000 1150 1200 650])
+                              (int-array [560 560 450 609 609]) 5))
+      (.setColor (color-of :static-wood))
+      (.fillRect 190 470 28 139)
+      (.setColor (color-of :red-bird))
+      (.fillOval 196 455 15 15)
+      (.fillOval 120 595 15 15)
+      (.fillOval 100 595 15 15))
+    (doseq [i (range n-towers)
+            :let [x (+ 300 (* (mod i 14) 55))
+                  y (- 540 (* 110 (quot i 14)))]]
+      (doto g
+        (.setColor (color-of :stone))
+        (.fillRect x y 10 69)
+        (.setColor (color-of :wood))
+        (.fillRect (- x 15) (- y 12) 40 12)
+        (.setColor (color-of :wood 3))
+        (.drawRect (- x 15) (- y 12) 40 11)
+        (.setColor (color-of :glass))
+        (.fillRect (+ x 14) (+ y 20) 8 49)
+        (.setColor (color-of :pig))
+        (.fillOval (- x 6) (- y 38) 24 24)))
+    (.dispose g)
+    img))
+
+(defn shared-colors-frame
+  "A synthetic frame in which blobs of different types touch along
+   pixels of a color both palettes accept, but that is neither's seed:
+   a wood plank edged in a brown static wood also matches, against the
+   static wood post; a red bird whose beak matches wood, under a plank;
+   and a static wood block edged in a dark brown the static surface
+   matches, on the hill. The flood fill gives such pixels to whichever
+   fill reaches them first, which component labelling has to match."
+  []
+  (let [img (synthetic-frame 5)
+        g (.createGraphics ^BufferedImage img)]
+    (doto g
+      ;; plank against the right of the post (x 190-217)
+      (.setColor (color-of :wood 3))
+      (.fillRect 218 584 62 14)
+      (.setColor (color-of :wood))
+      (.fillRect 220 586 58 10)
+      ;; plank over a red bird, its beak touching the plank
+      (.setColor (color-of :wood))
+      (.fillRect 590 560 50 12)
+      (.setColor (color-of :red-bird))
+      (.fillOval 606 576 16 16)
+      (.setColor (color-of :red-bird 3))
+      (.fillRect 610 572 8 5)
+      ;; block edged in dark brown on the flat top of the hill (y 560)
+      (.setColor (Color. 48 23 8))
+      (.fillRect 760 526 40 34)
+      (.setColor (color-of :static-wood))
+      (.fillRect 762 528 36 30)
+      (.dispose))
+    img))
+
+(defn after-shot
+  "A copy of a frame with a patch knocked out and a plank fallen on the
+   ground, as a stand-in for the next screenshot after a shot."
+  [^BufferedImage img]
+  (let [out (BufferedImage. (.getWidth img) (.getHeight img) (.getType img))
+        g (.createGraphics out)]
+    (doto g
+      (.drawImage img 0 0 nil)
+      (.setColor (color-of :sky))
+      (.fillRect 290 480 40 60)
+      (.setColor (color-of :wood))
+      (.fillRect 600 590 45 12)
+      (.dispose))
+    out))
+
+(defn frames
+  "Screenshots read from the given PNG paths, or synthetic frames of
+   increasing clutter and the shared-colors frame if there are none."
+  [paths]
+  (if (seq paths)
+    (for [p paths]
+      [p (ImageIO/read (File. ^String p))])
+    (concat (for [n [5 14 28]]
+              [(str "synthetic-" n) (synthetic-frame n)])
+            [["shared-colors" (shared-colors-frame)]])))
+
+(defn median-ms
+  "Median wall time in ms of (f) over n runs, after warm-up runs."
+  [n f]
+  (dotimes [_ (max 2 (quot n 2))] (f))
+  (let [ts (sort (for [_ (range n)]
+                   (let [t0 (System/nanoTime)]
+                     (f)
+                     (/ (- (System/nanoTime) t0) 1e6))))]
+    (nth ts (quot n 2))))
+
+(defmacro with-out-str-result
+  "Evaluates body with *out* discarded, returning its value."
+  [& body]
+  `(binding [*out* (java.io.StringWriter.)]
+     ~@body))
+
+(defn- allocated-bytes
+  "Bytes allocated so far by each live thread, by thread id, where the
+   JVM can tell."
+  []
+  (let [mx (ManagementFactory/getThreadMXBean)]
+    (if (instance? com.sun.management.ThreadMXBean mx)
+      (let [^com.sun.management.ThreadMXBean mx mx
+            ids (.getAllThreadIds mx)]
+        (zipmap ids (.getThreadAllocatedBytes mx ids)))
+      {})))
+
+(defn- percentile
+  [sorted p]
+  (nth sorted (min (dec (count sorted))
+                   (long (Math/floor (* p (count sorted)))))))
+
+(defn run-bench
+  "Runs (f) for warmup-ms, then times each call until both min-n calls
+   and measure-ms have passed. Returns throughput, latency percentiles
+   in ms, and allocation per call and per second, summed over all
+   threads (so it includes work farmed out to pools, but not that of
+   threads which ended meanwhile)."
+  [f & {:keys [warmup-ms measure-ms min-n]
+        :or {warmup-ms 2000 measure-ms 5000 min-n 5}}]
+  (let [warm-end (+ (System/nanoTime) (* warmup-ms 1000000))]
+    (while (< (System/nanoTime) warm-end) (f)))
+  (let [a0 (allocated-bytes)
+        t0 (System/nanoTime)
+        end (+ t0 (* measure-ms 1000000))
+        ts (loop [ts []]
+             (if (and (>= (count ts) min-n) (>= (System/nanoTime) end))
+               ts
+               (let [t (System/nanoTime)]
+                 (f)
+                 (recur (conj ts (/ (- (System/nanoTime) t) 1e6))))))
+        secs (/ (- (System/nanoTime) t0) 1e9)
+        a1 (allocated-bytes)
+        alloc (reduce + (for [[id b] a1
+                              :let [b0 (get a0 id 0)]
+                              :when (>= b b0)]
+                          (- b b0)))
+        sorted (vec (sort ts))
+        n (count ts)]
+    {:n n
+     :ops-per-s (/ n secs)
+     :mean-ms (/ (reduce + ts) n)
+     :p50-ms (percentile sorted 0.5)
+     :p90-ms (percentile sorted 0.9)
+     :p99-ms (percentile sorted 0.99)
+     :max-ms (peek sorted)
+     :alloc-bytes-per-op (/ alloc (double n))
+     :alloc-mb-per-s (/ alloc 1e6 secs)}))
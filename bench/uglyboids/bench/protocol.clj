@@ -0,0 +1,68 @@
+(ns uglyboids.bench.protocol
+  "Round-trip latency and screenshot throughput of the robot client,
+   over object serialization and over the binary protocol, against the
+   local stand-in server (ab.framework.server.StandInServer).
+   lein with-profile +bench run -m uglyboids.bench.protocol [png]"
+  (:use uglyboids.bench.fixtures)
+  (:import (ab.framework.ai ClientActionRobot)
+           (ab.framework.server StandInServer)
+           (java.io ByteArrayOutputStream File OutputStream PrintStream)
+           (java.nio.file Files)
+           (javax.imageio ImageIO)))
+
+(defn- png-bytes
+  [path]
+  (if path
+    (Files/readAllBytes (.toPath (File. ^String path)))
+    (let [bs (ByteArrayOutputStream.)]
+      (ImageIO/write ^java.awt.image.RenderedImage (synthetic-frame 14)
+                     "png" bs)
+      (.toByteArray bs))))
+
+(defmacro ^:private without-system-out
+  "Evaluates body with System/out discarded: the robot prints a line
+   for every screenshot."
+  [& body]
+  `(let [out# System/out]
+     (System/setOut (PrintStream. (proxy [OutputStream] []
+                                    (write
+                                      ([b#])
+                                      ([bs# off# len#])))))
+     (try ~@body
+          (finally (System/setOut out#)))))
+
+(defn measure
+  "Timings for one protocol, each against a fresh stand-in server."
+  [binary? ^bytes png n]
+  (let [server (.start (StandInServer. 0 png))
+        ^ClientActionRobot robot (without-system-out
+                                   (ClientActionRobot.
+                                    "localhost" (.getPort server)
+                                    (boolean binary?)))
+        _ (assert (= binary? (.isBinary robot)))
+        b0 (+ (.get (.bytesIn server)) (.get (.bytesOut server)))
+        state-ms (median-ms n #(.getStateInfo robot))
+        b1 (+ (.get (.bytesIn server)) (.get (.bytesOut server)))
+        t0 (System/nanoTime)
+        _ (without-system-out
+            (dotimes [_ n] (.screenShotBytes robot)))
+        t1 (System/nanoTime)]
+    (.close server)
+    {:state-ms state-ms
+     ;; median-ms runs (f) n times plus n/2 warm-up runs
+     :state-bytes (/ (- b1 b0) (+ n (quot n 2)) 1.0)
+     :shots-per-s (/ n (/ (- t1 t0) 1e9))
+     :mb-per-s (/ (* n (alength png)) (/ (- t1 t0) 1e9) 1e6)}))
+
+(defn -main
+  [& args]
+  (let [^bytes png (png-bytes (first args))
+        n 200]
+    (println "screenshot:" (alength png) "bytes," n "calls each")
+    (doseq [binary? [false true]
+            :let [m (measure binary? png n)]]
+      (println (format "%-13s state info %7.3f ms, %6.1f bytes/call; screenshots %7.1f /s, %7.1f MB/s"
+                       (if binary? "binary" "serialization")
+                       (:state-ms m) (:state-bytes m)
+                       (:shots-per-s m) (:mb-per-s m)))))
+  (shutdown-agents))
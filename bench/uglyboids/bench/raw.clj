@@ -0,0 +1,87 @@
+(ns uglyboids.bench.raw
+  "Screenshot to scene, end to end, as PNG and as raw pixels. The
+   stand-in server encodes a PNG for every screenshot, as the game
+   server does; raw screenshots are of the whole frame or of just the
+   vision region, optionally deflated.
+   lein with-profile +bench run -m uglyboids.bench.raw"
+  (:use uglyboids.bench.fixtures
+        [uglyboids.vision :only [image-from-bytes
+                                 scene-from-pixels raw-pixels
+                                 pixel-buf min-x max-x min-y max-y]]
+        [uglyboids.vision.classify :only [image-pixels]])
+  (:import (ab.framework.ai ClientActionRobot)
+           (ab.framework.server StandInServer)
+           (java.io ByteArrayOutputStream OutputStream PrintStream)
+           (javax.imageio ImageIO)))
+
+(defn- png-bytes
+  []
+  (let [bs (ByteArrayOutputStream.)]
+    (ImageIO/write ^java.awt.image.RenderedImage (synthetic-frame 14)
+                   "png" bs)
+    (.toByteArray bs)))
+
+(def ^:private region
+  [min-x min-y (inc (- max-x min-x)) (inc (- max-y min-y))])
+
+;; each fetches a screenshot, returning its size in bytes and a fn of
+;; no args giving its pixels
+
+(defn- png-observation
+  [^ClientActionRobot robot]
+  (let [bs (.screenShotBytes robot)]
+    [(alength bs) #(image-pixels (image-from-bytes bs) pixel-buf)]))
+
+(defn- raw-observation
+  [^ClientActionRobot robot [x y w h] deflate?]
+  (let [shot (.rawScreenShot robot (int x) (int y) (int w) (int h)
+                             (boolean deflate?))]
+    [(alength (.getData shot)) #(raw-pixels shot)]))
+
+(def ^:private variants
+  [["png" png-observation]
+   ["raw, whole frame" #(raw-observation % [0 0 0 0] false)]
+   ["raw, vision region" #(raw-observation % region false)]
+   ["raw, region, deflated" #(raw-observation % region true)]])
+
+(defn- scene-of
+  [robot observe]
+  (with-out-str-result
+    (scene-from-pixels ((second (observe robot))))))
+
+(defn measure
+  "Median ms to fetch a screenshot and get its pixels, and to find its
+   scene as well, with the bytes sent, for one kind of screenshot."
+  [robot observe n]
+  {:pixels-ms (median-ms n #((second (observe robot))))
+   :scene-ms (median-ms n #(scene-of robot observe))
+   :bytes (first (observe robot))})
+
+(defmacro ^:private without-system-out
+  "Evaluates body with System/out discarded: the robot prints a line
+   for every screenshot."
+  [& body]
+  `(let [out# System/out]
+     (System/setOut (PrintStream. (proxy [OutputStream] []
+                                    (write
+                                      ([b#])
+                                      ([bs# off# len#])))))
+     (try ~@body
+          (finally (System/setOut out#)))))
+
+(defn -main
+  [& args]
+  (let [png (png-bytes)
+        server (.start (.setEncodeScreenShots (StandInServer. 0 png) true))
+        robot (ClientActionRobot. "localhost" (.getPort server) true)
+        n 20
+        scenes (without-system-out
+                 (doall (for [[_ observe] variants]
+                          (scene-of robot observe))))]
+    (println "scenes agree:" (apply = scenes))
+    (doseq [[label observe] variants
+            :let [m (without-system-out (measure robot observe n))]]
+      (println (format "%-22s %8d bytes, to pixels %7.2f ms, to scene %7.2f ms"
+                       label (:bytes m) (:pixels-ms m) (:scene-ms m))))
+    (.close server))
+  (shutdown-agents))
@@ -0,0 +1,167 @@
+(ns uglyboids.bench.suite
+  "The hot paths of vision and simulation, each timed with run-bench:
+   throughput, latency percentiles and allocation. Vision runs on the
+   given screenshots (or a synthetic frame), simulation on level 1-2.
+   Results can be saved, and compared with saved ones to catch
+   regressions.
+   lein with-profile +bench run -m uglyboids.bench.suite
+     [--save out.edn] [--compare base.edn] [--only substring] [png ...]"
+  (:use uglyboids.core
+        uglyboids.bench.fixtures
+        [uglyboids.physics-params :only [px-width px-height ground-level]]
+        [uglyboids.vision.classify :only [frame-pixels classify-region!
+                                          type-bit]]
+        [uglyboids.vision.labels :only [label-buffer clear-labels!
+                                        xy-index]]
+        [uglyboids.vision.floodfill :only [scanline scanline-fill!]]
+        [uglyboids.vision.shape-detection :only [shape-from-coords]])
+  (:require [uglyboids.vision :as vision]
+            [clojure.java.io :as io]
+            uglyboids.levels.level-1-2))
+
+;; a regression is a median this much slower than the baseline's
+(def slower-ratio 1.1)
+
+(def level-scene
+  (assoc uglyboids.levels.level-1-2/level :world-scale 1.0))
+
+(defn- find-pixel
+  "Index of the first pixel in the vision region whose class has bit."
+  [^ints classes bit]
+  (first (for [y (range vision/min-y (inc vision/max-y))
+               x (range vision/min-x (inc vision/max-x))
+               :let [i (xy-index px-width x y)]
+               :when (pos? (bit-and (aget classes i) (long bit)))]
+           i)))
+
+(defn vision-benches
+  "[name prepare opts] for each vision benchmark of the frame img,
+   where (prepare) sets up the fixture and returns the fn to time."
+  [label img]
+  (let [^ints classes vision/classes
+        x-range [vision/min-x vision/max-x]
+        y-range [vision/min-y vision/max-y]
+        bit (type-bit :stone)
+        classify! #(classify-region! (frame-pixels img vision/pixel-buf
+                                                   px-width px-height)
+                                     classes px-width x-range y-range)
+        fitted-blobs #(with-out-str-result
+                        (doall (for [b (vision/identify-shapes img)]
+                                 (do @(:geom b) b))))]
+    [[(str "identify-shapes " label)
+      (fn []
+        #(doseq [b (vision/identify-shapes img)] @(:geom b)))]
+     [(str "scanline " label)
+      (fn []
+        (classify!)
+        (let [seed (find-pixel classes bit)
+              sx (mod seed px-width)
+              sy (quot seed px-width)
+              ^booleans marks (boolean-array (* px-width px-height))
+              test (fn [[x y]]
+                     (let [i (xy-index px-width x y)]
+                       (and (not (aget marks i))
+                            (pos? (bit-and (aget classes i) (long bit))))))
+              mark (fn [[x y]] (aset marks (xy-index px-width x y) true))]
+          #(doseq [[x y] (scanline sx sy test mark x-range y-range)]
+             (aset marks (xy-index px-width x y) false))))]
+     [(str "scanline-fill! " label)
+      (fn []
+        (classify!)
+        (let [seed (find-pixel classes bit)
+              sx (mod seed px-width)
+              sy (quot seed px-width)
+              labels (label-buffer px-width px-height)]
+          #(do (clear-labels! labels)
+               (scanline-fill! classes bit labels 1 sx sy x-range y-range))))]
+     [(str "shape-from-coords " label)
+      (fn []
+        (let [fitted (remove #(#{:ground :pig :red-bird :blue-bird
+                                 :yellow-bird} (:type %))
+                             (fitted-blobs))]
+          #(doseq [{:keys [type coords x-range y-range]} fitted]
+             (if (#{:static-surface :static-wood} type)
+               (shape-from-coords coords false x-range y-range ground-level
+                                  type)
+               (shape-from-coords coords true x-range y-range vision/max-y
+                                  type)))))]
+     [(str "adjust-shapes " label)
+      (fn []
+        (let [blobs (fitted-blobs)]
+          #(with-out-str-result (doall (vision/adjust-shapes blobs 6)))))]]))
+
+(defn- level-world!
+  "Sets up the world of level 1-2, returning its snapshot."
+  []
+  (reset! scene level-scene)
+  (setup-world! level-scene)
+  (snapshot-world))
+
+(defn sim-benches
+  "[name prepare opts] for each simulation benchmark, on level 1-2.
+   Each simulate-shot! call first rewinds the world with restore-world!.
+   ranked-shots runs without *memoize-sims*, so it simulates every time."
+  []
+  [["setup-world! level-1-2"
+    (fn []
+      (level-world!)
+      #(setup-world! level-scene))]
+   ["simulate-shot! level-1-2"
+    (fn []
+      (let [snap (level-world!)
+            shot (shot-at (:pt (first (with-out-str-result
+                                        (doall (poss-targets)))))
+                          true 0.9)]
+        #(do (restore-world! snap)
+             (simulate-shot! shot))))]
+   ["ranked-shots level-1-2"
+    (fn []
+      (let [snap (level-world!)]
+        #(binding [*memoize-sims* false]
+           (restore-world! snap)
+           (with-out-str-result (doall (ranked-shots))))))
+    [:warmup-ms 5000 :measure-ms 20000 :min-n 3]]])
+
+(defn- report
+  [name r base]
+  (println (format "%-34s %9.2f ops/s  p50 %9.3f  p90 %9.3f  p99 %9.3f ms  %10.1f KB/op %8.1f MB/s%s"
+                   name (:ops-per-s r) (:p50-ms r) (:p90-ms r) (:p99-ms r)
+                   (/ (:alloc-bytes-per-op r) 1024) (:alloc-mb-per-s r)
+                   (if base
+                     (let [ratio (/ (:p50-ms r) (:p50-ms base))]
+                       (format "  x%.2f of baseline%s" ratio
+                               (if (> ratio slower-ratio) "  SLOWER" "")))
+                     ""))))
+
+(defn- parse-args
+  [args]
+  (loop [args args
+         opts {:paths []}]
+    (if-let [[a b & more] (seq args)]
+      (case a
+        "--save" (recur more (assoc opts :save b))
+        "--compare" (recur more (assoc opts :compare b))
+        "--only" (recur more (assoc opts :only b))
+        (recur (next args) (update-in opts [:paths] conj a)))
+      opts)))
+
+(defn -main
+  [& args]
+  (let [{:keys [paths save only] base-file :compare} (parse-args args)
+        baseline (when base-file (read-string (slurp base-file)))
+        imgs (if (seq paths)
+               (frames paths)
+               [["synthetic-14" (synthetic-frame 14)]])
+        benches (concat (mapcat (fn [[label img]] (vision-benches label img))
+                                imgs)
+                        (sim-benches))
+        results (doall
+                 (for [[name prepare opts] benches
+                       :when (or (nil? only) (.contains ^String name only))]
+                   (let [r (apply run-bench (prepare) opts)]
+                     (report name r (get baseline name))
+                     [name r])))]
+    (when save
+      (spit (io/file save) (pr-str (into (sorted-map) results)))
+      (println "saved to" save)))
+  (shutdown-agents))
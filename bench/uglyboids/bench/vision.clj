@@ -0,0 +1,78 @@
+(ns uglyboids.bench.vision
+  "Timing of vision segmentation modes, and how :parallel scales with
+   the number of threads.
+   lein with-profile +bench run -m uglyboids.bench.vision [png ...]"
+  (:use uglyboids.bench.fixtures)
+  (:require [uglyboids.vision :as vision]))
+
+(defn segment-ms
+  "Median ms for identify-shapes with all shape fitting finished."
+  [img mode threads]
+  (binding [vision/*segmentation* mode
+            vision/*vision-threads* threads]
+    (median-ms 9 #(doseq [blob (vision/identify-shapes img)]
+                    @(:geom blob)))))
+
+(defn incremental-ms
+  "Median ms for identify-shapes on the frame after a shot, segmented
+   incrementally (as :components) from the frame before it."
+  [img]
+  (let [next-img (after-shot img)
+        times (for [_ (range 9)]
+                (binding [vision/*incremental* true
+                          vision/*segmentation* :components]
+                  (vision/identify-shapes img)
+                  (let [t0 (System/nanoTime)]
+                    (doseq [blob (vision/identify-shapes next-img)]
+                      @(:geom blob))
+                    (/ (- (System/nanoTime) t0) 1e6))))]
+    (nth (sort (doall times)) 4)))
+
+(defn blob-summary
+  "The blobs a segmentation mode finds in img, each as its type, pixel
+   count and bounding box."
+  [img mode threads]
+  (binding [vision/*segmentation* mode
+            vision/*vision-threads* threads]
+    (set (for [blob (vision/identify-shapes img)]
+           [(:type blob) (count (:coords blob))
+            (:x-range blob) (:y-range blob)]))))
+
+(defn- differences
+  "Blobs found by only one of two segmentations, as [only-a only-b]."
+  [a b]
+  [(sort (remove b a)) (sort (remove a b))])
+
+(defn -main
+  [& paths]
+  (let [cores (.availableProcessors (Runtime/getRuntime))
+        thread-counts (distinct (concat (take-while #(< % cores)
+                                                    (iterate #(* 2 %) 1))
+                                        [cores]))]
+    (println "cores:" cores)
+    (doseq [[name img] (frames paths)]
+      (println)
+      (println name)
+      (doseq [mode [:floodfill :components]]
+        (println (format "  %-12s %8.1f ms" mode (segment-ms img mode 1))))
+      (let [flood (blob-summary img :floodfill 1)
+            comps (blob-summary img :components 1)
+            [only-flood only-comps] (differences flood comps)]
+        (println "  blobs differing between :floodfill and :components:"
+                 (count only-flood) "and" (count only-comps))
+        (doseq [b only-flood] (println "    :floodfill " b))
+        (doseq [b only-comps] (println "    :components" b))
+        (doseq [n thread-counts
+                :let [par (blob-summary img :parallel n)]]
+          (when (not= par comps)
+            (println "  :parallel" n "differs from :components:"
+                     (differences comps par)))))
+      (println (format "  %-12s %8.1f ms  (after a shot, vs %.1f ms in full)"
+                       :incremental (incremental-ms img)
+                       (segment-ms (after-shot img) :components 1)))
+      (let [base (segment-ms img :parallel 1)]
+        (doseq [n thread-counts
+                :let [t (if (= n 1) base (segment-ms img :parallel n))]]
+          (println (format "  :parallel %2d %8.1f ms  (x%.2f)"
+                           n t (/ base t))))))
+    (shutdown-agents)))
@@ -0,0 +1,49 @@
+(ns uglyboids.bench.world
+  "Rewinding the simulated world for each candidate shot: rebuilding
+   it from the scene, against restoring a snapshot. Also checks that
+   shots simulated after a restore have the same effects as after a
+   rebuild.
+   lein with-profile +bench run -m uglyboids.bench.world"
+  (:use uglyboids.core
+        uglyboids.bench.fixtures)
+  (:require uglyboids.levels.level-1-2))
+
+(def level-scene
+  (assoc uglyboids.levels.level-1-2/level :world-scale 1.0))
+
+(defn effects-after
+  "Effects of each shot in turn, rewinding with (rewind!) in between."
+  [shots rewind!]
+  (doall (for [shot shots]
+           (let [effects (with-out-str-result (simulate-shot! shot))]
+             (rewind!)
+             effects))))
+
+(defn -main
+  [& args]
+  (reset! scene level-scene)
+  (setup-world! level-scene)
+  (let [snap (snapshot-world)
+        shots (with-out-str-result
+                (doall (for [{:keys [pt]} (poss-targets)
+                             direct? [true false]]
+                         (shot-at pt direct? 0.9))))]
+    (println "bodies:" (count (:bodies snap)) " shots:" (count shots))
+    (println (format "rebuild with setup-world!   %9.3f ms"
+                     (median-ms 21 #(setup-world! level-scene))))
+    (setup-world! level-scene)
+    (let [snap (snapshot-world)]
+      (println (format "restore-world! of snapshot  %9.3f ms"
+                       (median-ms 21 #(restore-world! snap))))
+      (let [rebuilt (effects-after shots #(setup-world! level-scene))
+            _ (setup-world! level-scene)
+            snap (snapshot-world)
+            restored (effects-after shots #(restore-world! snap))]
+        (println "same effects after restore as after rebuild:"
+                 (count (filter true? (map = rebuilt restored)))
+                 "of" (count shots))
+        (doseq [[a b] (map vector rebuilt restored)
+                :when (not= a b)]
+          (println "  rebuild" a)
+          (println "  restore" b)))))
+  (shutdown-agents))
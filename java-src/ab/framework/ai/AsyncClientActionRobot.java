@@ -0,0 +1,237 @@
+package ab.framework.ai;
+/**This software is distributed under terms of the BSD license. See the LICENSE file for details.**/
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import ab.framework.client.binary.BinaryProtocol;
+import ab.framework.client.commands.ClientBinaryProtocolCmd;
+import ab.framework.client.commands.ClientCmd;
+import ab.framework.client.commands.ClientConfigurationCmd;
+import ab.framework.client.commands.ClientDragCmd;
+import ab.framework.client.commands.ClientFinishPlayCmd;
+import ab.framework.client.commands.ClientFinishRunCmd;
+import ab.framework.client.commands.ClientGetConfCmd;
+import ab.framework.client.commands.ClientGetGlobalConfCmd;
+import ab.framework.client.commands.ClientGetStateInfoCmd;
+import ab.framework.client.commands.ClientLoadLevelCmd;
+import ab.framework.client.commands.ClientMouseWheelCmd;
+import ab.framework.client.commands.ClientNextLevelCmd;
+import ab.framework.client.commands.ClientRawScreenShotCmd;
+import ab.framework.client.commands.ClientRestartCmd;
+import ab.framework.client.commands.ClientScreenShotCmd;
+import ab.framework.client.commands.ClientShootCmd;
+import ab.framework.client.commands.ClientShootWithStateInfoReturnedCmd;
+import ab.framework.other.RawScreenShot;
+import ab.framework.other.Shot;
+import ab.framework.other.StateInfo;
+import ab.framework.player.Configuration;
+
+/**
+ * A non-blocking counterpart to ClientActionRobot. Each method sends
+ * its command and returns at once with a CompletableFuture of the
+ * reply, so several commands can be outstanding on the one socket:
+ * replies are matched to requests by the request id of their frame.
+ * Uses the binary protocol, so the server must agree to it.
+ */
+public class AsyncClientActionRobot {
+	private final Socket socket;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final Map<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+	private int nextId = 1;
+	/** Why the connection failed, once it has; guarded by out. */
+	private IOException failure;
+
+	private static class Pending {
+		final ClientCmd cmd;
+		final CompletableFuture<Object> future = new CompletableFuture<Object>();
+
+		Pending(ClientCmd cmd)
+		{
+			this.cmd = cmd;
+		}
+	}
+
+	public AsyncClientActionRobot(String host, int port) throws IOException
+	{
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		ObjectOutputStream oout = new ObjectOutputStream(socket.getOutputStream());
+		oout.flush();
+		ObjectInputStream oin = new ObjectInputStream(socket.getInputStream());
+		oout.writeObject(new ClientBinaryProtocolCmd(BinaryProtocol.VERSION));
+		oout.flush();
+		if (!oin.readBoolean()) {
+			socket.close();
+			throw new IOException("server declined the binary protocol");
+		}
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		Thread reader = new Thread(new Runnable() {
+			public void run() { readReplies(); }
+		}, "async robot reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/** Completes the pending request of each reply frame as it comes.
+	 *  If the connection fails, so does everything still pending. */
+	private void readReplies()
+	{
+		try {
+			while (true) {
+				Object[] frame = BinaryProtocol.readFrame(in);
+				Pending p = pending.remove(frame[0]);
+				if (p == null)
+					throw new IOException("reply to unknown request " + frame[0]);
+				try {
+					p.future.complete(BinaryProtocol.decodeReply(p.cmd, (byte[]) frame[1]));
+				} catch (IOException e) {
+					p.future.completeExceptionally(e);
+				}
+			}
+		} catch (IOException e) {
+			synchronized (out) {
+				failure = e;
+				for (Pending p : pending.values())
+					p.future.completeExceptionally(e);
+				pending.clear();
+			}
+		}
+	}
+
+	/** Sends cmd; the future completes with its decoded reply, or with
+	 *  null at once if it has none. */
+	@SuppressWarnings("unchecked")
+	public <T> CompletableFuture<T> submit(ClientCmd cmd)
+	{
+		boolean replies = BinaryProtocol.replyTo(cmd) != BinaryProtocol.Reply.NONE;
+		Pending p = new Pending(cmd);
+		try {
+			byte[] payload = BinaryProtocol.encodeCommand(cmd);
+			synchronized (out) {
+				if (failure != null)
+					throw failure;
+				int id = nextId++;
+				if (replies)
+					pending.put(id, p);
+				BinaryProtocol.writeFrame(out, id, payload);
+			}
+			if (!replies)
+				p.future.complete(null);
+		} catch (IOException e) {
+			pending.values().remove(p);
+			p.future.completeExceptionally(e);
+		}
+		return (CompletableFuture<T>) (CompletableFuture<?>) p.future;
+	}
+
+	/** Completes after ms, without holding up the caller. */
+	private static CompletableFuture<Void> after(CompletableFuture<?> f, long ms)
+	{
+		return f.thenRunAsync(new Runnable() {
+			public void run() {}
+		}, CompletableFuture.delayedExecutor(ms, TimeUnit.MILLISECONDS));
+	}
+
+	public CompletableFuture<byte[]> screenShotBytes()
+	{
+		return submit(new ClientScreenShotCmd());
+	}
+
+	public CompletableFuture<RawScreenShot> rawScreenShot(int x, int y, int width, int height,
+			boolean deflate)
+	{
+		return submit(new ClientRawScreenShotCmd(x, y, width, height, deflate));
+	}
+
+	public CompletableFuture<Boolean> shoot(List<Shot> csc)
+	{
+		return submit(new ClientShootCmd(csc));
+	}
+
+	public CompletableFuture<StateInfo> shootWithStateInfoReturned(List<Shot> csc)
+	{
+		return submit(new ClientShootWithStateInfoReturnedCmd(csc));
+	}
+
+	public CompletableFuture<StateInfo> getStateInfo()
+	{
+		return submit(new ClientGetStateInfoCmd());
+	}
+
+	public CompletableFuture<Boolean> configure(String team)
+	{
+		return submit(new ClientConfigurationCmd(team));
+	}
+
+	public CompletableFuture<Configuration> getConfiguration(String team)
+	{
+		return submit(new ClientGetConfCmd(team));
+	}
+
+	public CompletableFuture<HashMap<Integer, Integer>> getGlobalData()
+	{
+		return submit(new ClientGetGlobalConfCmd());
+	}
+
+	public CompletableFuture<Boolean> loadALevel(int i)
+	{
+		return submit(new ClientLoadLevelCmd(i));
+	}
+
+	public CompletableFuture<Boolean> restartLevel()
+	{
+		return submit(new ClientRestartCmd());
+	}
+
+	public CompletableFuture<Boolean> nextLevel()
+	{
+		return submit(new ClientNextLevelCmd());
+	}
+
+	public CompletableFuture<Boolean> finishRun()
+	{
+		return submit(new ClientFinishRunCmd());
+	}
+
+	public CompletableFuture<Void> finishPlay()
+	{
+		return submit(new ClientFinishPlayCmd());
+	}
+
+	/** Drags; completes wait * 500 ms after sending, as
+	 *  ClientActionRobot.makeMove returns. */
+	public CompletableFuture<Void> makeMove(int x, int y, int toX, int toY, int wait)
+	{
+		return after(submit(new ClientDragCmd(x, y, toX, toY)), wait * 500L);
+	}
+
+	/** Zooms out; completes once the zoom animation should be over. */
+	public CompletableFuture<Void> zoomingOut()
+	{
+		CompletableFuture<Object> last = null;
+		for (int i = 0; i < 15; i++)
+			last = submit(new ClientMouseWheelCmd(-1));
+		return after(last, 2000);
+	}
+
+	public void close() throws IOException
+	{
+		socket.close();
+	}
+}
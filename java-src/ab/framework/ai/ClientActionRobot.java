@@ -12,6 +12,10 @@ import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.List;
 
+import ab.framework.client.binary.BinaryChannel;
+import ab.framework.client.binary.BinaryProtocol;
+import ab.framework.client.commands.ClientBinaryProtocolCmd;
+import ab.framework.client.commands.ClientCmd;
 import ab.framework.client.commands.ClientConfigurationCmd;
 import ab.framework.client.commands.ClientConfigurationWithResolutionCmd;
 import ab.framework.client.commands.ClientDragCmd;
@@ -23,10 +27,12 @@ import ab.framework.client.commands.ClientGetStateInfoCmd;
 import ab.framework.client.commands.ClientLoadLevelCmd;
 import ab.framework.client.commands.ClientMouseWheelCmd;
 import ab.framework.client.commands.ClientNextLevelCmd;
+import ab.framework.client.commands.ClientRawScreenShotCmd;
 import ab.framework.client.commands.ClientRestartCmd;
 import ab.framework.client.commands.ClientScreenShotCmd;
 import ab.framework.client.commands.ClientShootCmd;
 import ab.framework.client.commands.ClientShootWithStateInfoReturnedCmd;
+import ab.framework.other.RawScreenShot;
 import ab.framework.other.Shot;
 import ab.framework.other.StateInfo;
 import ab.framework.player.Configuration;
@@ -37,19 +43,35 @@ ObjectOutputStream out;
 ObjectInputStream in;
 String message;
 String env_dir = "vision/Matlab/";
+/** Set once the server has agreed to the binary protocol; commands
+ *  then go through it instead of the object streams. */
+BinaryChannel binary;
 public ClientActionRobot(String... ip)
 {
-    if(ip.length == 0)
-    {
-    	ip[0] = "localhost";
-    }
+	this(ip.length == 0 ? "localhost" : ip[0], 2004, false);
+}
+/** Connects to host:port. If binary, asks the server to switch to the
+ *  binary protocol, and keeps to object serialization if it declines.
+ *  Only ask it of servers that know ClientBinaryProtocolCmd. */
+public ClientActionRobot(String host, int port, boolean binary)
+{
 	try{
 		//1. creating a socket to connect to the server
-		requestSocket = new Socket(ip[0], 2004);
-		System.out.println("Connected to " + ip[0] + " in port 2004");
+		requestSocket = new Socket(host, port);
+		// commands are small and each waits for its reply
+		requestSocket.setTcpNoDelay(true);
+		System.out.println("Connected to " + host + " in port " + port);
 		out = new ObjectOutputStream(requestSocket.getOutputStream());
 		out.flush();
 		in = new ObjectInputStream(requestSocket.getInputStream());
+		if (binary) {
+			out.writeObject(new ClientBinaryProtocolCmd(BinaryProtocol.VERSION));
+			out.flush();
+			if (in.readBoolean())
+				this.binary = new BinaryChannel(requestSocket.getInputStream(),
+						requestSocket.getOutputStream());
+			System.out.println("Binary protocol " + (this.binary != null ? "in use" : "declined"));
+		}
 	}
 	catch(UnknownHostException unknownHost){
 		System.err.println("You are trying to connect to an unknown host!");
@@ -58,26 +80,56 @@ public ClientActionRobot(String... ip)
 		ioException.printStackTrace();
 	}
 }
+// each command goes by whichever protocol is in use
+void send(ClientCmd cmd) throws IOException
+{
+	if (binary != null)
+		binary.call(cmd);
+	else
+		out.writeObject(cmd);
+}
+boolean callBoolean(ClientCmd cmd) throws IOException
+{
+	if (binary != null)
+		return ((Boolean) binary.call(cmd)).booleanValue();
+	out.writeObject(cmd);
+	out.flush();
+	return in.readBoolean();
+}
+Object callObject(ClientCmd cmd) throws IOException, ClassNotFoundException
+{
+	if (binary != null)
+		return binary.call(cmd);
+	out.writeObject(cmd);
+	out.flush();
+	return in.readObject();
+}
+public boolean isBinary()
+{
+	return binary != null;
+}
 public void screenShot(String imageName)
+{
+	byte[] imageBytes = screenShotBytes();
+	if (imageBytes == null)
+		return;
+	FileOutputStream f;
+	try {
+		//System.out.println(imageName);
+		f = new FileOutputStream(new File(env_dir +imageName));
+		f.write(imageBytes);
+		f.close();
+		System.out.println("Screenshot saved");
+	} catch (IOException e) {
+	}
+}
+/** Takes a screenshot and returns the encoded image bytes as sent by
+ *  the server, without writing them to disk. Returns null on failure. */
+public byte[] screenShotBytes()
 {
 	try{
-		//2. get Input and Output streams
-	
-		out.writeObject(new ClientScreenShotCmd());
-		out.flush();
-		
 		System.out.println("client executes command: screen shot");
-		//System.out.println("server feedback: "+(String)in.readObject());
-		byte[] imageBytes = (byte[])in.readObject();
-		FileOutputStream f;
-		try {
-			//System.out.println(imageName);
-			f = new FileOutputStream(new File(env_dir +imageName));
-			f.write(imageBytes);
-			f.close();
-			System.out.println("Screenshot saved");
-		} catch (IOException e) {
-		}	
+		return (byte[])callObject(new ClientScreenShotCmd());
 	}
 	catch(IOException ioException){
 		ioException.printStackTrace();
@@ -85,15 +137,26 @@ public void screenShot(String imageName)
 		// TODO Auto-generated catch block
 		e.printStackTrace();
 	}
-	
-
+	return null;
+}
+/** Takes a screenshot of just the given rectangle, as raw pixels (see
+ *  RawScreenShot), so neither side has to encode or decode a PNG.
+ *  Returns null on failure. */
+public RawScreenShot rawScreenShot(int x, int y, int width, int height, boolean deflate)
+{
+	try {
+		return (RawScreenShot)callObject(new ClientRawScreenShotCmd(x, y, width, height, deflate));
+	} catch (IOException e) {
+		e.printStackTrace();
+	} catch (ClassNotFoundException e) {
+		e.printStackTrace();
+	}
+	return null;
 }
 public boolean finishRun()
 {
    try {
-	out.writeObject(new ClientFinishRunCmd());
-	out.flush();
-	return in.readBoolean();
+	return callBoolean(new ClientFinishRunCmd());
 } catch (IOException e) {
 	// TODO Auto-generated catch block
 	e.printStackTrace();
@@ -103,9 +166,7 @@ return false;
 public boolean nextLevel()
 {
    try {
-	out.writeObject(new ClientNextLevelCmd());
-	out.flush();
-	return in.readBoolean();
+	return callBoolean(new ClientNextLevelCmd());
 } catch (IOException e) {
 	// TODO Auto-generated catch block
 	e.printStackTrace();
@@ -119,7 +180,7 @@ public void zoomingOut()
 	for (int i = 0; i < 15; i++) {
 		try {
 			//2. get Input and Output streams
-			out.writeObject(new ClientMouseWheelCmd(-1));
+			send(new ClientMouseWheelCmd(-1));
 			out.flush();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -137,7 +198,7 @@ public void zoomingOut()
 public void makeMove(int x, int y, int toX,int toY,int wait)
 {
 	try {
-		out.writeObject(new ClientDragCmd(x, y, toX, toY));
+		send(new ClientDragCmd(x, y, toX, toY));
 		Thread.sleep(wait * 500);
 	} catch (IOException e1) {
 		// TODO Auto-generated catch block
@@ -152,9 +213,7 @@ public void makeMove(int x, int y, int toX,int toY,int wait)
 public StateInfo shootWithStateInfoReturned(List<Shot> csc)
 {
     try {
-		out.writeObject(new ClientShootWithStateInfoReturnedCmd(csc));
-		out.flush();
-		return (StateInfo)( in.readObject());
+		return (StateInfo)callObject(new ClientShootWithStateInfoReturnedCmd(csc));
 	} catch (IOException e) {
 		// TODO Auto-generated catch block
 		e.printStackTrace();
@@ -168,9 +227,7 @@ public StateInfo shootWithStateInfoReturned(List<Shot> csc)
 public boolean shoot(List<Shot> csc)
 {
     try {
-		out.writeObject(new ClientShootCmd(csc));
-		out.flush();
-		return in.readBoolean();
+		return callBoolean(new ClientShootCmd(csc));
 	} catch (IOException e) {
 		// TODO Auto-generated catch block
 		e.printStackTrace();
@@ -180,8 +237,7 @@ public boolean shoot(List<Shot> csc)
 public boolean loadLevel(int... i)
 {
 	try {
-		out.writeObject(new ClientLoadLevelCmd(i.length==0?-1:i[0]));
-		return in.readBoolean();
+		return callBoolean(new ClientLoadLevelCmd(i.length==0?-1:i[0]));
 	} catch (IOException e) {
 		// TODO Auto-generated catch block
 		e.printStackTrace();
@@ -191,8 +247,7 @@ public boolean loadLevel(int... i)
 public boolean loadALevel(int i)
 {
 	try {
-		out.writeObject(new ClientLoadLevelCmd(i));
-		return in.readBoolean();
+		return callBoolean(new ClientLoadLevelCmd(i));
 	} catch (IOException e) {
 		// TODO Auto-generated catch block
 		e.printStackTrace();
@@ -202,9 +257,8 @@ public boolean loadALevel(int i)
 public boolean configureWithResolution()
 {
    try {
-    	out.writeObject(new ClientConfigurationWithResolutionCmd("AUS_Team","1244768"));
     	System.out.println(" Using resolution 1244*768. can be set in ClientActionRobot class");
-    	return in.readBoolean();
+    	return callBoolean(new ClientConfigurationWithResolutionCmd("AUS_Team","1244768"));
 } catch (IOException e) {
 	// TODO Auto-generated catch block
 	e.printStackTrace();
@@ -215,8 +269,7 @@ return false;
 public boolean configure(String team)
 {
    try {
-    	out.writeObject(new ClientConfigurationCmd(team));
-    	return in.readBoolean();
+    	return callBoolean(new ClientConfigurationCmd(team));
 } catch (IOException e) {
 	// TODO Auto-generated catch block
 	e.printStackTrace();
@@ -227,8 +280,7 @@ return false;
 public Configuration getConfiguration(String team)
 {
     try {
-    	out.writeObject(new ClientGetConfCmd(team));
-    	return (Configuration)(in.readObject());
+    	return (Configuration)callObject(new ClientGetConfCmd(team));
 } catch (IOException e) {
 	// TODO Auto-generated catch block
 	e.printStackTrace();
@@ -241,7 +293,7 @@ public Configuration getConfiguration(String team)
 }
 public void finishPlay() {
 	   try {
-	    	out.writeObject(new ClientFinishPlayCmd());
+	    	send(new ClientFinishPlayCmd());
 	    	
 	} catch (IOException e) {
 		// TODO Auto-generated catch block
@@ -252,8 +304,7 @@ public void finishPlay() {
 public boolean restartLevel()
 {
 	try {
-		out.writeObject(new ClientRestartCmd());
-		return in.readBoolean();
+		return callBoolean(new ClientRestartCmd());
 	} catch (IOException e) {
 		// TODO Auto-generated catch block
 		e.printStackTrace();
@@ -264,8 +315,7 @@ public boolean restartLevel()
 public HashMap<Integer,Integer> getGlobalData()
 {
 	try {
-		out.writeObject(new ClientGetGlobalConfCmd());
-		return (HashMap<Integer,Integer>)in.readObject();
+		return (HashMap<Integer,Integer>)callObject(new ClientGetGlobalConfCmd());
 	} catch (IOException e) {
 		// TODO Auto-generated catch block
 		e.printStackTrace();
@@ -280,8 +330,7 @@ public HashMap<Integer,Integer> getGlobalData()
 public StateInfo getStateInfo()
 {
 	try {
-		out.writeObject(new ClientGetStateInfoCmd());
-		return (StateInfo)in.readObject();
+		return (StateInfo)callObject(new ClientGetStateInfoCmd());
 	} catch (IOException e) {
 		// TODO Auto-generated catch block
 		e.printStackTrace();
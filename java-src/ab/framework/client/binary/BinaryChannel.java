@@ -0,0 +1,41 @@
+/**This software is distributed under terms of the BSD license. See the LICENSE file for details.**/
+package ab.framework.client.binary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import ab.framework.client.commands.ClientCmd;
+
+/**
+ * The client end of a connection using BinaryProtocol: sends one
+ * command at a time and waits for its reply.
+ */
+public class BinaryChannel {
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private int nextId = 1;
+
+	public BinaryChannel(InputStream in, OutputStream out)
+	{
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+	}
+
+	/** Sends cmd and returns its decoded reply, or null if it has none. */
+	public synchronized Object call(ClientCmd cmd) throws IOException
+	{
+		int id = nextId++;
+		BinaryProtocol.writeFrame(out, id, BinaryProtocol.encodeCommand(cmd));
+		if (BinaryProtocol.replyTo(cmd) == BinaryProtocol.Reply.NONE)
+			return null;
+		Object[] frame = BinaryProtocol.readFrame(in);
+		if (((Integer) frame[0]).intValue() != id)
+			throw new IOException("reply " + frame[0] + " to request " + id);
+		return BinaryProtocol.decodeReply(cmd, (byte[]) frame[1]);
+	}
+}
@@ -0,0 +1,406 @@
+/**This software is distributed under terms of the BSD license. See the LICENSE file for details.**/
+package ab.framework.client.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ab.framework.client.commands.ClientClickCmd;
+import ab.framework.client.commands.ClientCmd;
+import ab.framework.client.commands.ClientConfigurationCmd;
+import ab.framework.client.commands.ClientConfigurationWithResolutionCmd;
+import ab.framework.client.commands.ClientDragCmd;
+import ab.framework.client.commands.ClientFinishPlayCmd;
+import ab.framework.client.commands.ClientFinishRunCmd;
+import ab.framework.client.commands.ClientGetConfCmd;
+import ab.framework.client.commands.ClientGetGlobalConfCmd;
+import ab.framework.client.commands.ClientGetStateInfoCmd;
+import ab.framework.client.commands.ClientLoadLevelCmd;
+import ab.framework.client.commands.ClientMouseWheelCmd;
+import ab.framework.client.commands.ClientNextLevelCmd;
+import ab.framework.client.commands.ClientRawScreenShotCmd;
+import ab.framework.client.commands.ClientRestartCmd;
+import ab.framework.client.commands.ClientScreenShotCmd;
+import ab.framework.client.commands.ClientShootCmd;
+import ab.framework.client.commands.ClientShootWithStateInfoReturnedCmd;
+import ab.framework.other.RawScreenShot;
+import ab.framework.other.Shot;
+import ab.framework.other.StateInfo;
+import ab.framework.player.Configuration;
+
+/**
+ * A compact binary encoding of the client commands and their replies.
+ *
+ * Every message is a frame: an int length (of what follows), an int
+ * request id, then the payload. A command payload is an opcode byte
+ * followed by the command's fields; the reply to it is a frame with
+ * the same request id. Commands that get no reply over object
+ * serialization (drag, mouse wheel, finish play) get none here either.
+ */
+public final class BinaryProtocol {
+
+	public static final int VERSION = 1;
+
+	public static final byte CONFIGURE = 1;
+	public static final byte CONFIGURE_WITH_RESOLUTION = 2;
+	public static final byte DRAG = 3;
+	public static final byte CLICK = 4;
+	public static final byte FINISH_PLAY = 5;
+	public static final byte FINISH_RUN = 6;
+	public static final byte GET_CONF = 7;
+	public static final byte GET_GLOBAL_CONF = 8;
+	public static final byte GET_STATE_INFO = 9;
+	public static final byte LOAD_LEVEL = 10;
+	public static final byte MOUSE_WHEEL = 11;
+	public static final byte NEXT_LEVEL = 12;
+	public static final byte RESTART = 13;
+	public static final byte SCREEN_SHOT = 14;
+	public static final byte SHOOT = 15;
+	public static final byte SHOOT_WITH_STATE_INFO = 16;
+	public static final byte RAW_SCREEN_SHOT = 17;
+
+	/** What a command is answered with. */
+	public enum Reply { NONE, BOOLEAN, BYTES, RAW_SCREEN_SHOT, STATE_INFO, CONFIGURATION, GLOBAL_DATA }
+
+	private BinaryProtocol() {}
+
+	public static Reply replyTo(ClientCmd cmd)
+	{
+		if (cmd instanceof ClientDragCmd || cmd instanceof ClientClickCmd
+				|| cmd instanceof ClientMouseWheelCmd
+				|| cmd instanceof ClientFinishPlayCmd)
+			return Reply.NONE;
+		if (cmd instanceof ClientScreenShotCmd)
+			return Reply.BYTES;
+		if (cmd instanceof ClientRawScreenShotCmd)
+			return Reply.RAW_SCREEN_SHOT;
+		if (cmd instanceof ClientGetStateInfoCmd
+				|| cmd instanceof ClientShootWithStateInfoReturnedCmd)
+			return Reply.STATE_INFO;
+		if (cmd instanceof ClientGetConfCmd)
+			return Reply.CONFIGURATION;
+		if (cmd instanceof ClientGetGlobalConfCmd)
+			return Reply.GLOBAL_DATA;
+		return Reply.BOOLEAN;
+	}
+
+	// ## frames
+
+	public static void writeFrame(DataOutputStream out, int id, byte[] payload) throws IOException
+	{
+		out.writeInt(payload.length + 4);
+		out.writeInt(id);
+		out.write(payload);
+		out.flush();
+	}
+
+	/** Reads a frame into a two-element array: the request id (as an
+	 *  Integer) and the payload. */
+	public static Object[] readFrame(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		int id = in.readInt();
+		byte[] payload = new byte[length - 4];
+		in.readFully(payload);
+		return new Object[] { id, payload };
+	}
+
+	// ## commands
+
+	public static byte[] encodeCommand(ClientCmd cmd) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		if (cmd instanceof ClientConfigurationWithResolutionCmd) {
+			ClientConfigurationWithResolutionCmd c = (ClientConfigurationWithResolutionCmd) cmd;
+			out.writeByte(CONFIGURE_WITH_RESOLUTION);
+			writeString(out, c.getId());
+			writeString(out, c.getResolution());
+		} else if (cmd instanceof ClientConfigurationCmd) {
+			out.writeByte(CONFIGURE);
+			writeString(out, ((ClientConfigurationCmd) cmd).getId());
+		} else if (cmd instanceof ClientDragCmd) {
+			ClientDragCmd c = (ClientDragCmd) cmd;
+			out.writeByte(DRAG);
+			out.writeInt(c.getX());
+			out.writeInt(c.getY());
+			out.writeInt(c.getDx());
+			out.writeInt(c.getDy());
+		} else if (cmd instanceof ClientClickCmd) {
+			ClientClickCmd c = (ClientClickCmd) cmd;
+			out.writeByte(CLICK);
+			out.writeInt(c.getX());
+			out.writeInt(c.getY());
+		} else if (cmd instanceof ClientFinishPlayCmd) {
+			out.writeByte(FINISH_PLAY);
+		} else if (cmd instanceof ClientFinishRunCmd) {
+			out.writeByte(FINISH_RUN);
+		} else if (cmd instanceof ClientGetConfCmd) {
+			out.writeByte(GET_CONF);
+			writeString(out, ((ClientGetConfCmd) cmd).getId());
+		} else if (cmd instanceof ClientGetGlobalConfCmd) {
+			out.writeByte(GET_GLOBAL_CONF);
+		} else if (cmd instanceof ClientGetStateInfoCmd) {
+			out.writeByte(GET_STATE_INFO);
+		} else if (cmd instanceof ClientLoadLevelCmd) {
+			out.writeByte(LOAD_LEVEL);
+			out.writeInt(((ClientLoadLevelCmd) cmd).getLevel());
+		} else if (cmd instanceof ClientMouseWheelCmd) {
+			out.writeByte(MOUSE_WHEEL);
+			out.writeInt(((ClientMouseWheelCmd) cmd).getOperation());
+		} else if (cmd instanceof ClientNextLevelCmd) {
+			out.writeByte(NEXT_LEVEL);
+		} else if (cmd instanceof ClientRestartCmd) {
+			out.writeByte(RESTART);
+		} else if (cmd instanceof ClientScreenShotCmd) {
+			out.writeByte(SCREEN_SHOT);
+			writeString(out, ((ClientScreenShotCmd) cmd).getDirectory());
+		} else if (cmd instanceof ClientRawScreenShotCmd) {
+			ClientRawScreenShotCmd c = (ClientRawScreenShotCmd) cmd;
+			out.writeByte(RAW_SCREEN_SHOT);
+			out.writeInt(c.getX());
+			out.writeInt(c.getY());
+			out.writeInt(c.getWidth());
+			out.writeInt(c.getHeight());
+			out.writeBoolean(c.isDeflate());
+		} else if (cmd instanceof ClientShootWithStateInfoReturnedCmd) {
+			out.writeByte(SHOOT_WITH_STATE_INFO);
+			writeShots(out, ((ClientShootWithStateInfoReturnedCmd) cmd).getShots());
+		} else if (cmd instanceof ClientShootCmd) {
+			out.writeByte(SHOOT);
+			writeShots(out, ((ClientShootCmd) cmd).getShots());
+		} else {
+			throw new IOException("no binary encoding for " + cmd.getCommandName());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static ClientCmd decodeCommand(byte[] payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte op = in.readByte();
+		switch (op) {
+		case CONFIGURE:
+			return new ClientConfigurationCmd(readString(in));
+		case CONFIGURE_WITH_RESOLUTION: {
+			String id = readString(in);
+			return new ClientConfigurationWithResolutionCmd(id, readString(in));
+		}
+		case DRAG:
+			return new ClientDragCmd(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+		case CLICK:
+			return new ClientClickCmd(in.readInt(), in.readInt());
+		case FINISH_PLAY:
+			return new ClientFinishPlayCmd();
+		case FINISH_RUN:
+			return new ClientFinishRunCmd();
+		case GET_CONF:
+			return new ClientGetConfCmd(readString(in));
+		case GET_GLOBAL_CONF:
+			return new ClientGetGlobalConfCmd();
+		case GET_STATE_INFO:
+			return new ClientGetStateInfoCmd();
+		case LOAD_LEVEL:
+			return new ClientLoadLevelCmd(in.readInt());
+		case MOUSE_WHEEL:
+			return new ClientMouseWheelCmd(in.readInt());
+		case NEXT_LEVEL:
+			return new ClientNextLevelCmd();
+		case RESTART:
+			return new ClientRestartCmd();
+		case SCREEN_SHOT:
+			return new ClientScreenShotCmd(readString(in));
+		case SHOOT:
+			return new ClientShootCmd(readShots(in));
+		case SHOOT_WITH_STATE_INFO:
+			return new ClientShootWithStateInfoReturnedCmd(readShots(in));
+		case RAW_SCREEN_SHOT:
+			return new ClientRawScreenShotCmd(in.readInt(), in.readInt(), in.readInt(),
+					in.readInt(), in.readBoolean());
+		default:
+			throw new IOException("unknown binary command " + op);
+		}
+	}
+
+	// ## replies
+
+	/** Encodes reply, which must be of the kind replyTo(cmd). */
+	public static byte[] encodeReply(ClientCmd cmd, Object reply) throws IOException
+	{
+		Reply kind = replyTo(cmd);
+		if (kind == Reply.BYTES) {
+			// the bytes are the whole payload; a null reply is a
+			// single marker byte, which no PNG can be
+			return (reply == null) ? new byte[] { 0 } : (byte[]) reply;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		switch (kind) {
+		case BOOLEAN:
+			out.writeBoolean(reply != null && ((Boolean) reply).booleanValue());
+			break;
+		case RAW_SCREEN_SHOT: {
+			RawScreenShot shot = (RawScreenShot) reply;
+			out.writeBoolean(shot != null);
+			if (shot != null) {
+				out.writeInt(shot.getX());
+				out.writeInt(shot.getY());
+				out.writeInt(shot.getWidth());
+				out.writeInt(shot.getHeight());
+				out.writeBoolean(shot.isDeflated());
+				out.writeInt(shot.getData().length);
+				out.write(shot.getData());
+			}
+			break;
+		}
+		case STATE_INFO: {
+			StateInfo info = (StateInfo) reply;
+			out.writeBoolean(info != null);
+			if (info != null) {
+				out.writeInt(info.getScore());
+				writeString(out, info.getState());
+			}
+			break;
+		}
+		case CONFIGURATION: {
+			Configuration conf = (Configuration) reply;
+			out.writeBoolean(conf != null);
+			if (conf != null) {
+				writeString(out, conf.getPlayer_id());
+				out.writeInt(conf.getCurrent_level());
+				out.writeInt(conf.getRun());
+				out.writeInt(conf.getMax_level());
+				writeString(out, conf.getSsDir());
+				writeString(out, conf.getMainDir());
+				writeIntMap(out, conf.getLevel_grades());
+			}
+			break;
+		}
+		case GLOBAL_DATA: {
+			// global data replies are always maps of ints to ints
+			@SuppressWarnings("unchecked")
+			Map<Integer, Integer> grades = (Map<Integer, Integer>) reply;
+			writeIntMap(out, grades);
+			break;
+		}
+		default:
+			throw new IOException(cmd.getCommandName() + " has no reply");
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static Object decodeReply(ClientCmd cmd, byte[] payload) throws IOException
+	{
+		Reply kind = replyTo(cmd);
+		if (kind == Reply.BYTES)
+			return (payload.length == 1 && payload[0] == 0) ? null : payload;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		switch (kind) {
+		case BOOLEAN:
+			return in.readBoolean();
+		case RAW_SCREEN_SHOT: {
+			if (!in.readBoolean())
+				return null;
+			int x = in.readInt();
+			int y = in.readInt();
+			int w = in.readInt();
+			int h = in.readInt();
+			boolean deflated = in.readBoolean();
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			return new RawScreenShot(x, y, w, h, deflated, data);
+		}
+		case STATE_INFO:
+			if (!in.readBoolean())
+				return null;
+			return new StateInfo(in.readInt(), readString(in));
+		case CONFIGURATION: {
+			if (!in.readBoolean())
+				return null;
+			String id = readString(in);
+			int current = in.readInt();
+			int run = in.readInt();
+			int max = in.readInt();
+			String ssDir = readString(in);
+			String mainDir = readString(in);
+			Configuration conf = new Configuration(id, current, run, max, readIntMap(in));
+			conf.setSsDir(ssDir);
+			conf.setMainDir(mainDir);
+			return conf;
+		}
+		case GLOBAL_DATA:
+			return readIntMap(in);
+		default:
+			throw new IOException(cmd.getCommandName() + " has no reply");
+		}
+	}
+
+	// ## fields
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeShots(DataOutputStream out, List<Shot> shots) throws IOException
+	{
+		out.writeInt(shots.size());
+		for (Shot shot : shots) {
+			out.writeInt(shot.getX());
+			out.writeInt(shot.getY());
+			out.writeInt(shot.getDx());
+			out.writeInt(shot.getDy());
+			out.writeInt(shot.getT_shot());
+			out.writeInt(shot.getT_tap());
+		}
+	}
+
+	private static List<Shot> readShots(DataInputStream in) throws IOException
+	{
+		int n = in.readInt();
+		List<Shot> shots = new ArrayList<Shot>(n);
+		for (int i = 0; i < n; i++)
+			shots.add(new Shot(in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+					in.readInt(), in.readInt()));
+		return shots;
+	}
+
+	private static void writeIntMap(DataOutputStream out, Map<Integer, Integer> map) throws IOException
+	{
+		if (map == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(map.size());
+		for (Map.Entry<Integer, Integer> e : map.entrySet()) {
+			out.writeInt(e.getKey());
+			out.writeInt(e.getValue());
+		}
+	}
+
+	private static HashMap<Integer, Integer> readIntMap(DataInputStream in) throws IOException
+	{
+		int n = in.readInt();
+		if (n < 0)
+			return null;
+		HashMap<Integer, Integer> map = new HashMap<Integer, Integer>();
+		for (int i = 0; i < n; i++)
+			map.put(in.readInt(), in.readInt());
+		return map;
+	}
+}
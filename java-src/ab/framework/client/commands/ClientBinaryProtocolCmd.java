@@ -0,0 +1,38 @@
+/**This software is distributed under terms of the BSD license. See the LICENSE file for details.**/
+package ab.framework.client.commands;
+
+
+/**
+ * Asks the server to switch this connection to the binary protocol
+ * (see ab.framework.client.binary.BinaryProtocol). The server replies
+ * with a boolean; after a true reply both sides stop using object
+ * serialization and exchange length-prefixed frames.
+ */
+public class ClientBinaryProtocolCmd extends ClientCmd{
+
+/**
+	 *
+	 */
+	private static final long serialVersionUID = -2791503958236110462L;
+private int version;
+
+public ClientBinaryProtocolCmd(){}
+
+public ClientBinaryProtocolCmd(int version) {
+	super();
+	this.version = version;
+}
+
+public int getVersion() {
+	return version;
+}
+
+public void setVersion(int version) {
+	this.version = version;
+}
+
+@Override
+public String getCommandName() {
+	return "Binary Protocol";
+}
+}
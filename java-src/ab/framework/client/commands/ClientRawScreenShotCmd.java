@@ -0,0 +1,58 @@
+/**This software is distributed under terms of the BSD license. See the LICENSE file for details.**/
+package ab.framework.client.commands;
+
+
+/**
+ * Asks for the pixels of a rectangle of the screen as a RawScreenShot,
+ * rather than the whole screen as a PNG. A width or height of 0 extends
+ * the rectangle to the edge of the screen.
+ */
+public class ClientRawScreenShotCmd extends ClientCmd{
+
+/**
+	 *
+	 */
+	private static final long serialVersionUID = 4105873214472539086L;
+private int x, y, width, height;
+private boolean deflate;
+
+public ClientRawScreenShotCmd(){}
+
+public ClientRawScreenShotCmd(int x, int y, int width, int height, boolean deflate) {
+	super();
+	this.x = x;
+	this.y = y;
+	this.width = width;
+	this.height = height;
+	this.deflate = deflate;
+}
+
+public int getX() {
+	return x;
+}
+
+public int getY() {
+	return y;
+}
+
+public int getWidth() {
+	return width;
+}
+
+public int getHeight() {
+	return height;
+}
+
+public boolean isDeflate() {
+	return deflate;
+}
+
+public String toString()
+{
+   return "Raw screen shot of (" + x + " " + y + ") " + width + "x" + height;
+}
+@Override
+public String getCommandName() {
+	return "Raw Screen Shot";
+}
+}
@@ -0,0 +1,127 @@
+/**This software is distributed under terms of the BSD license. See the LICENSE file for details.**/
+package ab.framework.other;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The pixels of a rectangle of the screen, uncompressed: three bytes
+ * (red, green, blue) per pixel, row by row. Optionally deflated at the
+ * fastest level, which suits the large flat areas of a game screen.
+ */
+public class RawScreenShot implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -6203517431187349021L;
+	private int x;
+	private int y;
+	private int width;
+	private int height;
+	private boolean deflated;
+	private byte[] data;
+
+	public RawScreenShot(int x, int y, int width, int height, boolean deflated, byte[] data) {
+		super();
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.deflated = deflated;
+		this.data = data;
+	}
+
+	/** The rectangle at x, y of img, clipped to the image; a width or
+	 *  height of 0 or less extends to the edge. */
+	public static RawScreenShot fromImage(BufferedImage img, int x, int y, int width, int height,
+			boolean deflate)
+	{
+		x = Math.max(0, Math.min(x, img.getWidth()));
+		y = Math.max(0, Math.min(y, img.getHeight()));
+		int w = (width <= 0) ? img.getWidth() - x : Math.min(width, img.getWidth() - x);
+		int h = (height <= 0) ? img.getHeight() - y : Math.min(height, img.getHeight() - y);
+		int[] row = new int[w];
+		byte[] rgb = new byte[w * h * 3];
+		int j = 0;
+		for (int r = 0; r < h; r++) {
+			img.getRGB(x, y + r, w, 1, row, 0, w);
+			for (int i = 0; i < w; i++) {
+				int p = row[i];
+				rgb[j++] = (byte) (p >> 16);
+				rgb[j++] = (byte) (p >> 8);
+				rgb[j++] = (byte) p;
+			}
+		}
+		if (!deflate)
+			return new RawScreenShot(x, y, w, h, false, rgb);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(rgb);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(rgb.length / 8);
+		byte[] buf = new byte[65536];
+		while (!deflater.finished())
+			out.write(buf, 0, deflater.deflate(buf));
+		deflater.end();
+		return new RawScreenShot(x, y, w, h, true, out.toByteArray());
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean isDeflated() {
+		return deflated;
+	}
+
+	/** The data as sent: deflated or not. */
+	public byte[] getData() {
+		return data;
+	}
+
+	/** The red, green, blue bytes of the pixels, inflating them if
+	 *  they were sent deflated. Throws if deflated data ends short. */
+	public byte[] getRgb() throws DataFormatException
+	{
+		if (!deflated)
+			return data;
+		byte[] rgb = new byte[width * height * 3];
+		Inflater inflater = new Inflater();
+		inflater.setInput(data);
+		try {
+			int n = 0;
+			while (n < rgb.length && !inflater.finished()) {
+				int k = inflater.inflate(rgb, n, rgb.length - n);
+				if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new DataFormatException("raw screenshot data ends after "
+							+ n + " of " + rgb.length + " bytes");
+				n += k;
+			}
+		} finally {
+			inflater.end();
+		}
+		return rgb;
+	}
+
+	public String toString()
+	{
+		return "Raw screenshot of (" + x + " " + y + ") " + width + "x" + height
+				+ (deflated ? ", deflated to " + data.length + " bytes" : "");
+	}
+}
@@ -0,0 +1,289 @@
+/**This software is distributed under terms of the BSD license. See the LICENSE file for details.**/
+package ab.framework.server;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import ab.framework.client.binary.BinaryProtocol;
+import ab.framework.client.commands.ClientBinaryProtocolCmd;
+import ab.framework.client.commands.ClientCmd;
+import ab.framework.client.commands.ClientGetConfCmd;
+import ab.framework.client.commands.ClientGetGlobalConfCmd;
+import ab.framework.client.commands.ClientGetStateInfoCmd;
+import ab.framework.client.commands.ClientLoadLevelCmd;
+import ab.framework.client.commands.ClientRawScreenShotCmd;
+import ab.framework.client.commands.ClientScreenShotCmd;
+import ab.framework.client.commands.ClientShootWithStateInfoReturnedCmd;
+import ab.framework.other.RawScreenShot;
+import ab.framework.other.StateInfo;
+import ab.framework.player.Configuration;
+
+/**
+ * A local stand-in for the game server, for testing and measuring
+ * clients. It speaks both protocols: object serialization, and the
+ * binary protocol once a client asks for it with a
+ * ClientBinaryProtocolCmd. Every screenshot is of the same canned image,
+ * and every other command gets a plausible canned reply, after an
+ * optional delay standing in for the time the game takes. Like the
+ * real server, it handles the commands of a connection one at a time,
+ * in order. Counts the bytes it reads and writes, over all
+ * connections.
+ */
+public class StandInServer {
+	private final ServerSocket serverSocket;
+	private final byte[] screenshot;
+	/** The screenshot decoded, or null if it is not an image. */
+	private final BufferedImage screen;
+	private volatile boolean encodeScreenShots = false;
+	private volatile int level = 1;
+	private volatile long delayMs = 0;
+	public final AtomicLong bytesIn = new AtomicLong();
+	public final AtomicLong bytesOut = new AtomicLong();
+
+	/** Listens on port (0 for any free port). */
+	public StandInServer(int port, byte[] screenshot) throws IOException
+	{
+		this.serverSocket = new ServerSocket(port);
+		this.screenshot = screenshot;
+		this.screen = (screenshot.length > 0)
+				? ImageIO.read(new ByteArrayInputStream(screenshot)) : null;
+	}
+
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	/** Accepts connections in the background, each on its own thread. */
+	public StandInServer start()
+	{
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = serverSocket.accept();
+						socket.setTcpNoDelay(true);
+						Thread t = new Thread(new Runnable() {
+							public void run() { serve(socket); }
+						}, "stand-in connection");
+						t.setDaemon(true);
+						t.start();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}, "stand-in acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return this;
+	}
+
+	/** Makes every command that has a reply wait ms before replying. */
+	public StandInServer setDelay(long ms)
+	{
+		delayMs = ms;
+		return this;
+	}
+
+	/** If true, encodes a PNG for every screenshot, as the game server
+	 *  has to, instead of sending the canned bytes. */
+	public StandInServer setEncodeScreenShots(boolean encode)
+	{
+		encodeScreenShots = encode;
+		return this;
+	}
+
+	public void close() throws IOException
+	{
+		serverSocket.close();
+	}
+
+	/** The canned reply to cmd, of the kind BinaryProtocol.replyTo(cmd). */
+	protected Object respond(ClientCmd cmd)
+	{
+		if (delayMs > 0) {
+			try {
+				Thread.sleep(delayMs);
+			} catch (InterruptedException e) {
+			}
+		}
+		if (cmd instanceof ClientScreenShotCmd) {
+			if (!encodeScreenShots || screen == null)
+				return screenshot;
+			ByteArrayOutputStream png = new ByteArrayOutputStream(screenshot.length);
+			try {
+				ImageIO.write(screen, "png", png);
+			} catch (IOException e) {
+				return null;
+			}
+			return png.toByteArray();
+		}
+		if (cmd instanceof ClientRawScreenShotCmd) {
+			ClientRawScreenShotCmd c = (ClientRawScreenShotCmd) cmd;
+			if (screen == null)
+				return null;
+			return RawScreenShot.fromImage(screen, c.getX(), c.getY(), c.getWidth(),
+					c.getHeight(), c.isDeflate());
+		}
+		if (cmd instanceof ClientGetStateInfoCmd
+				|| cmd instanceof ClientShootWithStateInfoReturnedCmd)
+			return new StateInfo(0, "playing");
+		if (cmd instanceof ClientGetConfCmd)
+			return new Configuration(((ClientGetConfCmd) cmd).getId(), level, 1, level,
+					new HashMap<Integer, Integer>());
+		if (cmd instanceof ClientGetGlobalConfCmd)
+			return new HashMap<Integer, Integer>();
+		if (cmd instanceof ClientLoadLevelCmd) {
+			int l = ((ClientLoadLevelCmd) cmd).getLevel();
+			if (l > 0)
+				level = l;
+		}
+		return Boolean.TRUE;
+	}
+
+	private void serve(Socket socket)
+	{
+		try {
+			InputStream rawIn = new CountingInputStream(socket.getInputStream(), bytesIn);
+			OutputStream rawOut = new CountingOutputStream(socket.getOutputStream(), bytesOut);
+			ObjectOutputStream out = new ObjectOutputStream(rawOut);
+			out.flush();
+			ObjectInputStream in = new ObjectInputStream(rawIn);
+			while (true) {
+				ClientCmd cmd = (ClientCmd) in.readObject();
+				if (cmd instanceof ClientBinaryProtocolCmd) {
+					boolean ok = ((ClientBinaryProtocolCmd) cmd).getVersion() == BinaryProtocol.VERSION;
+					out.writeBoolean(ok);
+					out.flush();
+					if (ok) {
+						serveBinary(rawIn, rawOut);
+						return;
+					}
+					continue;
+				}
+				BinaryProtocol.Reply kind = BinaryProtocol.replyTo(cmd);
+				if (kind == BinaryProtocol.Reply.NONE)
+					continue;
+				Object reply = respond(cmd);
+				if (kind == BinaryProtocol.Reply.BOOLEAN)
+					out.writeBoolean(((Boolean) reply).booleanValue());
+				else
+					out.writeObject(reply);
+				out.flush();
+			}
+		} catch (EOFException e) {
+			// client went away
+		} catch (SocketException e) {
+			// client went away
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void serveBinary(InputStream rawIn, OutputStream rawOut) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(rawIn));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(rawOut));
+		while (true) {
+			Object[] frame = BinaryProtocol.readFrame(in);
+			ClientCmd cmd = BinaryProtocol.decodeCommand((byte[]) frame[1]);
+			if (BinaryProtocol.replyTo(cmd) == BinaryProtocol.Reply.NONE)
+				continue;
+			BinaryProtocol.writeFrame(out, ((Integer) frame[0]).intValue(),
+					BinaryProtocol.encodeReply(cmd, respond(cmd)));
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		private final AtomicLong count;
+
+		CountingInputStream(InputStream in, AtomicLong count)
+		{
+			super(in);
+			this.count = count;
+		}
+
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b >= 0)
+				count.incrementAndGet();
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count.addAndGet(n);
+			return n;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		private final AtomicLong count;
+
+		CountingOutputStream(OutputStream out, AtomicLong count)
+		{
+			super(out);
+			this.count = count;
+		}
+
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count.incrementAndGet();
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count.addAndGet(len);
+		}
+	}
+
+	/** Serves on port 2004, with the screenshot in the file given (or
+	 *  an empty one). */
+	public static void main(String[] args) throws IOException
+	{
+		byte[] shot = (args.length > 0) ? Files.readAllBytes(new File(args[0]).toPath())
+				: new byte[0];
+		new StandInServer(2004, shot).start();
+		System.out.println("Stand-in server on port 2004");
+		while (true) {
+			try {
+				Thread.sleep(Long.MAX_VALUE);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
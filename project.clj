@@ -8,5 +8,6 @@
                  [seesaw "1.4.2"]
                  [org.clojure/clojure "1.4.0"]]
   :java-source-paths ["java-src"]
+  :profiles {:bench {:source-paths ["bench"]}}
   :main uglyboids.client
   :aot [uglyboids.client uglyboids.vision uglyboids.interactive])
@@ -0,0 +1,89 @@
+(ns uglyboids.cache
+  "A small LRU cache in memory, optionally backed by a directory of
+   edn files so that it survives restarts. Keys are strings, used as
+   file names."
+  (:import (java.io File)
+           (java.util LinkedHashMap)))
+
+(defn lru-map
+  "A LinkedHashMap in access order that drops its least recently used
+   entry when it grows beyond capacity, calling (on-evict k) if given.
+   Not thread-safe by itself."
+  [capacity & [on-evict]]
+  (proxy [LinkedHashMap] [16 (float 0.75) true]
+    (removeEldestEntry [^java.util.Map$Entry e]
+      (let [evict? (> (.size ^LinkedHashMap this) (long capacity))]
+        (when (and evict? on-evict) (on-evict (.getKey e)))
+        evict?))))
+
+(defn- entry-file
+  ^File [{:keys [dir]} k]
+  (File. ^String dir (str k ".edn")))
+
+(defn- trim-dir!
+  "Deletes all but the capacity most recently written entries in dir."
+  [^String dir capacity]
+  (let [entries (filter #(.endsWith (.getName ^File %) ".edn")
+                        (.listFiles (File. dir)))]
+    (doseq [^File f (drop capacity (sort-by #(- (.lastModified ^File %))
+                                            entries))]
+      (.delete f))))
+
+(defn cache
+  "An LRU cache of the given capacity. With dir, entries are also
+   written there, and looked up there on a miss in memory. Files are
+   written and deleted in the background by the :writer agent: an
+   entry's file goes when the entry leaves memory, and the directory
+   is trimmed to capacity when the cache is made, so it never holds
+   more than twice capacity entries."
+  [capacity & [dir]]
+  (let [writer (when dir (agent nil :error-mode :continue))
+        c {:dir dir
+           :writer writer
+           :stats (atom {:hits 0 :disk-hits 0 :misses 0})}
+        on-evict (when dir
+                   (fn [k]
+                     (send-off writer (fn [_] (.delete (entry-file c k))))))]
+    (when dir
+      (.mkdirs (File. ^String dir))
+      (send-off writer (fn [_] (trim-dir! dir capacity))))
+    (assoc c :mem (lru-map capacity on-evict))))
+
+(defn- read-entry
+  [c k]
+  (let [f (entry-file c k)]
+    (when (.exists f)
+      (try
+        (binding [*read-eval* false]
+          (read-string (slurp f)))
+        (catch Exception e
+          (println "ignoring unreadable cache entry" (str f) (.getMessage e))
+          nil)))))
+
+(defn lookup
+  "The cached value for k, or nil."
+  [{:keys [^LinkedHashMap mem dir stats] :as c} k]
+  (if-let [v (locking mem (.get mem k))]
+    (do (swap! stats update-in [:hits] inc)
+        v)
+    (if-let [v (when dir (read-entry c k))]
+      (do (locking mem (.put mem k v))
+          (swap! stats update-in [:disk-hits] inc)
+          v)
+      (do (swap! stats update-in [:misses] inc)
+          nil))))
+
+(defn store!
+  "Caches v (which must not be nil) under k, and returns it. With a
+   dir, its file is written later, by the :writer agent."
+  [{:keys [^LinkedHashMap mem dir writer] :as c} k v]
+  (locking mem (.put mem k v))
+  (when dir
+    (send-off writer
+              (fn [_]
+                (try
+                  (spit (entry-file c k) (pr-str v))
+                  (catch Exception e
+                    (println "could not write cache entry" k
+                             (.getMessage e)))))))
+  v)
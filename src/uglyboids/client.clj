@@ -1,12 +1,18 @@
 (ns uglyboids.client
   (:gen-class)
   (:import (ab.framework.ai ClientActionRobot)
-           (ab.framework.other Shot)
+           (ab.framework.other Shot StateInfo)
            (ab.framework.player Configuration)
+           (java.awt.image BufferedImage)
+           (java.io FileOutputStream)
            (java.util ArrayList))
   (:use uglyboids.core
         uglyboids.physics-params
-        [uglyboids.vision :only [scene-from-image-file]]
+        [uglyboids.vision :only [scene-from-image scene-from-pixels
+                                 image-from-bytes raw-pixels *incremental*
+                                 min-x max-x min-y max-y]]
+        [uglyboids.vision.scene-cache :only [scene-for-image scene-for-pixels]]
+        [uglyboids.sim-cache :only [stats] :rename {stats sim-cache-stats}]
         [cljbox2d.vec2d :only [TWOPI PI in-pi-pi polar-xy]]))
 
 (def env-path "vision/Matlab/")
@@ -36,12 +42,69 @@
 
 (def curr-shots (atom []))
 
+(def ^:dynamic *save-screenshots*
+  "When true, each screenshot is also written to env-path, in the
+   background. Only useful for debugging vision."
+  false)
+
+;; serialises screenshot writes, off the critical path
+(def screenshot-writer
+  (agent 0
+         :error-mode :continue
+         :error-handler (fn [_ ^Throwable e]
+                          (println "could not save screenshot:"
+                                   (.getMessage e)))))
+
+(defn save-screenshot!
+  [^bytes bs file-name]
+  (when bs
+    (send-off screenshot-writer
+              (fn [n]
+                (with-open [f (FileOutputStream. (str env-path file-name))]
+                  (.write f bs))
+                (inc n)))))
+
+(def ^:dynamic *raw-screenshots*
+  "When true, screenshots are taken as raw pixels of just the region
+   vision looks at, rather than as PNGs, which saves encoding on the
+   server and decoding here; the server must know
+   ClientRawScreenShotCmd. Raw screenshots are not saved."
+  false)
+
+(defn- screenshot-scene
+  "The scene in a screenshot, or nil if none could be taken or decoded."
+  []
+  (when-let [bs (.screenShotBytes robot)]
+    (when *save-screenshots* (save-screenshot! bs "im.png"))
+    (when-let [img (image-from-bytes bs)]
+      (scene-for-image img #(binding [*incremental* true]
+                              (scene-from-image %))))))
+
+(defn- raw-screenshot-scene
+  "The scene in a raw screenshot, or nil if none could be taken."
+  []
+  (when-let [shot (.rawScreenShot robot min-x min-y
+                                  (inc (- max-x min-x)) (inc (- max-y min-y))
+                                  false)]
+    (scene-for-pixels (raw-pixels shot)
+                      #(binding [*incremental* true]
+                         (scene-from-pixels %)))))
+
 (defn scene-snapshot!
+  "Takes a screenshot and makes its scene current. If that fails, the
+   previous scene stays current and is returned."
   []
-  (.screenShot robot "im.png")
-  (let [new-scene (scene-from-image-file (str env-path "im.png"))]
-    (reset! scene new-scene)
-    new-scene))
+  (let [new-scene (try
+                    (if *raw-screenshots*
+                      (raw-screenshot-scene)
+                      (screenshot-scene))
+                    (catch Exception e
+                      (println "could not read screenshot:" (.getMessage e))
+                      nil))]
+    (if new-scene
+      (reset! scene new-scene)
+      (do (println "no screenshot, keeping the previous scene")
+          @scene))))
 
 (defn refresh-configuration!
   []
@@ -66,7 +129,9 @@
       (let [cached-scene (:init-scene @(curr))]
         (if (or (nil? cached-scene)
                 (= (mod (:failures @(curr)) 2) 1))
-          (scene-snapshot!)
+          (let [s (scene-snapshot!)]
+            (when (= :in-play (:state s))
+              (swap! (curr) assoc :init-scene s)))
           (reset! scene (:init-scene @(curr)))))
       (reset! curr-shots []))))
 
@@ -78,7 +143,15 @@
       (swap! max-level dec)
       (recur))))
 
-(defn do-shots!
+(def ^:dynamic *plan-ahead*
+  "How many shots to plan and submit at once. With more than one, the
+   sequence is chosen by chaining simulated worlds (plan-shots) and
+   the screen is only observed again if the level is still in play
+   after it."
+  1)
+
+(defn shot-list
+  "The shots as an ArrayList of Shot, dragged from the slingshot."
   [shots]
   (let [al (ArrayList.)
         [x0-px y0-px] (world-to-px @focus-world)
@@ -93,11 +166,41 @@
             ;; y is double negated since y in pixels is flipped
             drag-y (- (- dy))]
         (.add al (Shot. x0-px y0-px drag-x drag-y 0 tap-ms))))
-    (.shoot robot al)))
+    al))
+
+(defn do-shots!
+  [shots]
+  (.shoot robot (shot-list shots)))
+
+(defn state-from-info
+  "Our scene state for the state string of a StateInfo."
+  [^StateInfo info]
+  (let [st (.toLowerCase (str (.getState info)))]
+    (cond
+     (or (.contains st "won") (.contains st "success")) :success
+     (or (.contains st "lost") (.contains st "fail")) :failed
+     :else :in-play)))
+
+(defn do-planned-shots!
+  "Submits shots in one round-trip. If the returned state shows that
+   the level has ended, records that in scene without taking a
+   screenshot; otherwise (or if there is no state) observes the screen
+   again."
+  [shots]
+  (let [^StateInfo info (.shootWithStateInfoReturned robot (shot-list shots))
+        state (when info (state-from-info info))]
+    (when info
+      (println "score" (.getScore info) "state" (.getState info)))
+    (if (and state (not= :in-play state))
+      (reset! scene {:state state})
+      (scene-snapshot!))))
 
 (defn -main
   [& args]
   (let [serverip (if (seq args) (first args) "localhost")
+        plan-ahead (if (second args)
+                     (Integer/parseInt (second args))
+                     *plan-ahead*)
         rbt (ClientActionRobot. (into-array [serverip]))
         start-level -1]
     (alter-var-root (var robot) (fn [_] rbt))
@@ -109,6 +212,21 @@
         (do
           (println "building world...")
           (setup-world! @scene)
+          (if (> plan-ahead 1)
+            (let [shots (try (plan-shots plan-ahead)
+                             (catch Exception e
+                               (println (.getMessage e))
+                               (setup-world! @scene)
+                               []))
+                  shots (if (seq shots)
+                          shots
+                          [(choose-shot-naive (:attempts @(curr)))])]
+              (when (empty? @curr-shots)
+                (swap! (curr) update-in [:first-shots] conj (first shots)))
+              (swap! curr-shots into shots)
+              (println "taking" (count shots) "planned shots:"
+                       (map (juxt :target-type :angle) shots))
+              (do-planned-shots! shots))
           ;; TODO: select from a list of possible shots, exclude those already tried
           (let [attempts (:attempts @(curr))
                 shot (try (choose-shot attempts)
@@ -121,9 +239,12 @@
             (println "taking" (if (:direct? shot) "direct" "mortar")
                      "shot at" (:target-type shot) (:target-pt shot))
             (do-shots! [shot])
-            (scene-snapshot!)))
+            (scene-snapshot!))))
         (do
           (println "level ended with" (:state @scene))
+          (when-not *optimizer*
+            (println "coarse-to-fine search so far:" @search-stats))
+          (println "simulation cache so far:" (sim-cache-stats))
           (swap! (curr) update-in [:attempts] inc)
           (swap! (curr) update-in [:shot-lists] conj @curr-shots)
           (if (= :success (:state @scene))
@@ -0,0 +1,113 @@
+(ns uglyboids.contacts
+  "A reusable buffer of the contacts reported during a time step. Each
+   contact is a pair of fixtures, a point, a normal pointing from
+   fixture A to fixture B, and an impulse. Backed by flat arrays that
+   grow as needed and are kept from step to step."
+  (:import (org.jbox2d.collision WorldManifold)
+           (org.jbox2d.common Vec2)
+           (org.jbox2d.callbacks ContactImpulse)
+           (org.jbox2d.dynamics.contacts Contact)))
+
+;; The store holds the fixture array (two per contact) and the value
+;; array (x, y, normal-x, normal-y, impulse per contact); the count is
+;; the single element of size.
+
+(def ^:private n-vals 5)
+
+(deftype ContactBuffer [^objects store ^ints size])
+
+(defn contact-buffer
+  ([] (contact-buffer 64))
+  ([capacity]
+     (ContactBuffer. (object-array [(object-array (* 2 capacity))
+                                    (double-array (* n-vals capacity))])
+                     (int-array 1))))
+
+(defn contact-count
+  ^long [^ContactBuffer cb]
+  (aget ^ints (.size cb) 0))
+
+(defn clear-contacts!
+  "Empties the buffer, keeping its arrays. Fixtures are left in place
+   until overwritten, as the world keeps them alive anyway."
+  [^ContactBuffer cb]
+  (aset ^ints (.size cb) 0 (int 0))
+  cb)
+
+(defn- grow!
+  [^ContactBuffer cb]
+  (let [^objects store (.store cb)
+        ^objects fixts (aget store 0)
+        ^doubles vals (aget store 1)]
+    (aset store 0 (java.util.Arrays/copyOf fixts (* 2 (alength fixts))))
+    (aset store 1 (java.util.Arrays/copyOf vals (* 2 (alength vals))))))
+
+(defn add-contact!
+  "Appends a solved contact, if it has any points. Records the point
+   with the larger impulse (the second if they are equal) and that
+   impulse. The world manifold is scratch space,
+   overwritten here."
+  [^ContactBuffer cb ^Contact contact ^WorldManifold world-manifold
+   ^ContactImpulse c-impulse]
+  (let [pcount (.pointCount (.getManifold contact))]
+    (when (pos? pcount)
+      ;; mutates its argument:
+      (.getWorldManifold contact world-manifold)
+      (let [^floats imps (.normalImpulses c-impulse)
+            imp0 (aget imps 0)
+            k (if (and (> pcount 1)
+                       (not (> imp0 (aget imps 1))))
+                1 0)
+            ^Vec2 pt (aget ^objects (.points world-manifold) k)
+            ^Vec2 normal (.normal world-manifold)
+            i (contact-count cb)]
+        (when (= (* 2 i) (alength ^objects (aget ^objects (.store cb) 0)))
+          (grow! cb))
+        (let [^objects store (.store cb)
+              ^objects fixts (aget store 0)
+              ^doubles vals (aget store 1)
+              j (* i n-vals)]
+          (aset fixts (* 2 i) (.getFixtureA contact))
+          (aset fixts (inc (* 2 i)) (.getFixtureB contact))
+          (aset vals j (double (.x pt)))
+          (aset vals (+ j 1) (double (.y pt)))
+          (aset vals (+ j 2) (double (.x normal)))
+          (aset vals (+ j 3) (double (.y normal)))
+          (aset vals (+ j 4) (double (aget imps k)))
+          (aset ^ints (.size cb) 0 (int (inc i))))))))
+
+(defn fixture-a
+  [^ContactBuffer cb ^long i]
+  (aget ^objects (aget ^objects (.store cb) 0) (* 2 i)))
+
+(defn fixture-b
+  [^ContactBuffer cb ^long i]
+  (aget ^objects (aget ^objects (.store cb) 0) (inc (* 2 i))))
+
+(defn- contact-val
+  ^double [^ContactBuffer cb ^long i ^long k]
+  (aget ^doubles (aget ^objects (.store cb) 1) (+ (* i n-vals) k)))
+
+(defn contact-point
+  "Point of contact i, as [x y]."
+  [cb ^long i]
+  [(contact-val cb i 0) (contact-val cb i 1)])
+
+(defn contact-normal
+  "Normal of contact i, pointing from fixture A to fixture B, as [x y]."
+  [cb ^long i]
+  [(contact-val cb i 2) (contact-val cb i 3)])
+
+(defn impulse
+  ^double [cb ^long i]
+  (contact-val cb i 4))
+
+(defn max-impulse
+  "Largest impulse of any contact in the buffer, or 0."
+  ^double [cb]
+  (let [n (contact-count cb)]
+    (loop [i 0
+           m 0.0]
+      (if (< i n)
+        (recur (inc i) (max m (impulse cb i)))
+        m))))
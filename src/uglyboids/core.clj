@@ -1,24 +1,30 @@
 (ns uglyboids.core
   (:use cljbox2d.core
         [cljbox2d.vec2d :only [TWOPI PI in-pi-pi polar-xy
-                               v-mag v-angle v-sub v-scale]]
+                               v-mag v-angle v-add v-sub v-scale]]
         uglyboids.physics-params)
+  (:require [uglyboids.contacts :as contacts]
+            [uglyboids.events :as events]
+            [uglyboids.sim-cache :as sim-cache]
+            [uglyboids.trajectory :as trajectory])
   (:import (org.jbox2d.callbacks ContactListener)
            (org.jbox2d.collision WorldManifold)
-           (org.jbox2d.dynamics Body)
+           (org.jbox2d.common Vec2)
+           (org.jbox2d.dynamics Body World)
+           (java.util.concurrent ConcurrentLinkedQueue ForkJoinPool Future)
            (org.jbox2d.collision AABB)))
 
 (def scene (atom nil))
 
-(def pigs (atom #{}))
+(def ^:dynamic pigs (atom #{}))
 
-(def bird-queue (atom []))
+(def ^:dynamic bird-queue (atom []))
 
-(def bird (atom nil))
+(def ^:dynamic bird (atom nil))
 
-(def focus-world (atom nil))
+(def ^:dynamic focus-world (atom nil))
 
-(def ground-body (atom nil))
+(def ^:dynamic ground-body (atom nil))
 
 (defn world-to-px-scale
   []
@@ -47,59 +53,86 @@
   (for [[v0 v1] (partition 2 1 vertices)]
     (merge {:shape (edge v0 v1)} attrs)))
 
-(def contact-buffer
-  "Holds a sequence of contacts for the last time step, each
-represented as `[fixture-a fixture-b point normal impulse]`.
-The normal points from A to B."
-  (atom []))
+(def ^:dynamic contact-buffer
+  "Holds the contacts of the last time step, see uglyboids.contacts."
+  (contacts/contact-buffer))
 
 (defn set-buffering-contact-listener!
   "A ContactListener which populates `contact-buffer`."
   []
   (let [world-manifold (WorldManifold.)
+        cb contact-buffer
         lstnr (reify ContactListener
                 (beginContact [_ _])
                 (endContact [_ _])
                 (preSolve [_ _ _])
                 (postSolve [_ contact c-impulse]
-                  (let [manifold (.getManifold contact)
-                        pcount (.pointCount manifold)]
-                    (when (pos? pcount)
-                      ;; mutates its argument:
-                      (.getWorldManifold contact world-manifold)
-                      (let [fixt-a (.getFixtureA contact)
-                            fixt-b (.getFixtureB contact)
-                            -points (.points world-manifold)
-                            -imps (.normalImpulses c-impulse)
-                            pts (map v2xy (take pcount -points))
-                            imps (take pcount -imps)
-                            imp (apply max imps)
-                            pt (nth pts (if (apply > imps) 0 1))
-                            ;; world vector pointing from A to B
-                            normal (v2xy (.normal world-manifold))]
-                        (swap! contact-buffer conj
-                               [fixt-a fixt-b pt normal imp]))))))]
+                  (contacts/add-contact! cb contact world-manifold
+                                         c-impulse)))]
     (.setContactListener *world* lstnr)))
 
-(def destroyed (atom #{}))
+;; ## body data
+;;
+;; The user data of each body. Only the resistance changes during a
+;; simulation, so it is kept in a one-element array. Dereferencing
+;; gives the data as a map.
 
-(def pig-tally (atom 0))
-(def block-tally (atom 0))
-(def pig-damage (atom 0.0))
-(def block-damage (atom 0.0))
+(deftype BodyData [type bird pig rgb ^doubles resistance]
+  clojure.lang.IDeref
+  (deref [_]
+    (let [r (aget resistance 0)]
+      (merge {:type type :rgb rgb}
+             (when-not (Double/isNaN r) {:resistance r})))))
 
-(def tapped? (atom false))
-(def time-to-tap (atom nil))
+(defn body-data
+  "User data for a body of the given type; birds and static bodies
+   have no resistance."
+  [type rgb]
+  (BodyData. type (bird-types type) (= :pig type) rgb
+             (double-array 1 (double (or (initial-resistances type)
+                                         Double/NaN)))))
+
+(defn object-type
+  [bod]
+  (.type ^BodyData (user-data bod)))
+
+;; ## events
+;;
+;; Hits, destructions, damage and bird deflections are recorded, as
+;; maps, in a bounded ring buffer rather than printed as they happen.
+;; See uglyboids.events/describe for how to read them.
+
+(def ^:dynamic *record-events*
+  "Whether simulations record events in event-log. When false, the
+   event maps are not even built."
+  true)
+
+(def event-capacity 256)
+
+(def ^:dynamic event-log (events/event-ring event-capacity))
+
+(defmacro ^:private event!
+  [ev]
+  `(when *record-events*
+     (events/record! event-log ~ev)))
+
+(def ^:dynamic destroyed (atom #{}))
+
+(def ^:dynamic pig-tally (atom 0))
+(def ^:dynamic block-tally (atom 0))
+(def ^:dynamic pig-damage (atom 0.0))
+(def ^:dynamic block-damage (atom 0.0))
+
+(def ^:dynamic tapped? (atom false))
+(def ^:dynamic time-to-tap (atom nil))
 
 (defn make-bird!
   [bird-type]
   (let [attr (bird-type bird-attrs)
         radius (:radius attr)
-        udat {:type bird-type
-              :rgb (:rgb attr)}
         bod (body! {:position @focus-world
                     :bullet true
-                    :user-data (atom udat)}
+                    :user-data (body-data bird-type (:rgb attr))}
                    {:shape (circle radius)
                     :density (:density attr)
                     :restitution (:restitution attr)
@@ -116,11 +149,52 @@ The normal points from A to B."
     (reset! bird (make-bird! bird-type))
     (swap! bird-queue next)))
 
+;; ## simulation contexts
+;;
+;; The world and the game state atoms above are dynamic vars. Binding
+;; them to a fresh set (see sim-context) gives a simulation of its own,
+;; so several can run at once on different threads.
+
+(defn sim-context
+  "Fresh simulation state, to be installed with with-sim-context."
+  []
+  {#'*world* nil
+   #'world-width (atom @world-width)
+   #'world-height (atom @world-height)
+   #'pigs (atom #{})
+   #'bird-queue (atom [])
+   #'bird (atom nil)
+   #'focus-world (atom nil)
+   #'ground-body (atom nil)
+   #'contact-buffer (contacts/contact-buffer)
+   #'event-log (events/event-ring event-capacity)
+   #'destroyed (atom #{})
+   #'pig-tally (atom 0)
+   #'block-tally (atom 0)
+   #'pig-damage (atom 0.0)
+   #'block-damage (atom 0.0)
+   #'tapped? (atom false)
+   #'time-to-tap (atom nil)})
+
+(defmacro with-sim-context
+  "Evaluates body with the simulation state of context ctx."
+  [ctx & body]
+  `(with-bindings* ~ctx (fn [] ~@body)))
+
+(defn- new-world!
+  "Starts a new empty world: globally, with create-world!, or within
+   the current simulation context (with create-world!'s gravity)."
+  []
+  (if (thread-bound? #'*world*)
+    (var-set #'*world* (World. (vec2 [0 -10]) true))
+    (create-world!)))
+
 (defn setup-world!
   [scene]
-  (create-world!)
+  (new-world!)
   (set-buffering-contact-listener!)
-  (reset! contact-buffer [])
+  (contacts/clear-contacts! contact-buffer)
+  (events/clear-events! event-log)
   ;; establish world scale
   (reset! world-width (* base-world-width (:world-scale scene)))
   (reset! world-height (/ @world-width aspect-ratio))
@@ -137,7 +211,7 @@ The normal points from A to B."
   ;; however, the pixel y scale is flipped relative to world y scale, so reverse!
   (reset! ground-body
           (body! {:type :static
-                  :user-data (atom {:type :ground})}
+                  :user-data (body-data :ground nil)}
                  {:shape (polygon (map px-to-world
                                        (reverse (list [0 px-height]
                                                       [0 ground-level]
@@ -160,11 +234,8 @@ The normal points from A to B."
                 :poly (polygon (map px-to-world (reverse (:coords obj))))
                 :polyline (poly-edges (map px-to-world (:coords obj))
                                       fixt-attr))
-          udat {:type type
-                :rgb (:rgb obj)
-                :resistance (initial-resistances type)}
           body-attr {:type bodytype
-                     :user-data (atom udat)
+                     :user-data (body-data type (:rgb obj))
                      :position pos
                      :linear-damping linear-damping
                      :angular-damping angular-damping}
@@ -179,6 +250,94 @@ The normal points from A to B."
    :bird bird
    :bird-queue bird-queue})
 
+;; ## world snapshots
+;;
+;; Candidate shots are all simulated from the same initial world.
+;; Rather than rebuilding it from the scene after each one, the state
+;; of every body is captured once and written back. Bodies are never
+;; destroyed during a simulation (only deactivated), so the same set
+;; of bodies exists throughout. Code looking at the bodies in play
+;; goes through live-bodies rather than bodyseq.
+
+(defn live?
+  "Is a body still in play, i.e. not destroyed (deactivated)?"
+  [^Body b]
+  (.isActive b))
+
+(defn live-bodies
+  []
+  (filter live? (bodyseq)))
+
+(defn live-fixtures
+  []
+  (mapcat fixtureseq (live-bodies)))
+
+(defn sweep-destroyed!
+  "Destroys for real the bodies that were only deactivated. For a
+   world that is not going to be restored, such as the one shown in
+   the testbed, whose drawing goes over every body in it."
+  []
+  (doseq [b (doall (remove live? (bodyseq)))]
+    (destroy! b)))
+
+(defn- game-state-atoms
+  "Atoms that a simulation changes, besides the bodies themselves (in
+   the current simulation context)."
+  []
+  [pigs bird bird-queue destroyed pig-tally block-tally pig-damage
+   block-damage tapped? time-to-tap])
+
+(defn snapshot-world
+  "Captures the transform, velocities, awake and active flags, and
+   resistance of every body, along with the game state atoms."
+  []
+  {:bodies (vec (for [^Body b (reverse (bodyseq))] ;; creation order
+                  [b
+                   (.clone (.getPosition b))
+                   (.getAngle b)
+                   (.clone (.getLinearVelocity b))
+                   (.getAngularVelocity b)
+                   (.isAwake b)
+                   (.isActive b)
+                   (aget ^doubles (.resistance ^BodyData (user-data b)) 0)]))
+   :atoms (mapv deref (game-state-atoms))})
+
+(def ^:private world-flags
+  (doto (.getDeclaredField org.jbox2d.dynamics.World "m_flags")
+    (.setAccessible true)))
+
+(defn- flag-new-fixtures!
+  "Makes the next step look for new contacts before it collides, as it
+   does in a world whose fixtures were just created."
+  []
+  (let [^java.lang.reflect.Field f world-flags]
+    (.setInt f *world* (bit-or (.getInt f *world*)
+                               org.jbox2d.dynamics.World/NEW_FIXTURE))))
+
+(defn restore-world!
+  "Puts the world back as it was in snapshot snap, which must have
+   been taken of the current world."
+  [snap]
+  (doseq [[^Body b ^Vec2 pos angle ^Vec2 vel ang-vel awake? active? resist]
+          (:bodies snap)]
+    (.setTransform b pos (float angle))
+    ;; toggling drops all contacts (with their stale warm-start
+    ;; impulses) and re-inserts the body into the broad-phase, so
+    ;; contacts are found afresh as in a newly built world
+    (.setActive b false)
+    (when active? (.setActive b true))
+    (.setAwake b true)
+    (.setLinearVelocity b vel)
+    (.setAngularVelocity b (float ang-vel))
+    (when-not awake? (.setAwake b false))
+    (aset ^doubles (.resistance ^BodyData (user-data b)) 0
+          (double resist)))
+  (flag-new-fixtures!)
+  (contacts/clear-contacts! contact-buffer)
+  (doseq [[a v] (map vector (game-state-atoms) (:atoms snap))]
+    (reset! a v))
+  nil)
+
 (defn calculate-launch-angles-for
   [[x0 y0] [xT yT] v g]
   ;; http://en.wikipedia.org/wiki/Trajectory_of_a_projectile#Angle_required_to_hit_coordinate_.28x.2Cy.29
@@ -225,125 +384,259 @@ The normal points from A to B."
      :direct? direct?
      :sim-flight sim-flight
      :ab-flight ab-flight
+     :tap-frac tap-frac
      :sim-tap-t (* sim-flight tap-frac)
      :ab-tap-t (* ab-flight tap-frac)
      :target-pt target-pt}))
 
+(defn- speed-of
+  [^Body bod]
+  (let [v (.getLinearVelocity bod)
+        x (double (.x v))
+        y (double (.y v))]
+    (Math/sqrt (+ (* x x) (* y y)))))
+
+(defn- scale-velocity!
+  [^Body bod s]
+  (let [v (.getLinearVelocity bod)
+        s (double s)]
+    (.setLinearVelocity bod (Vec2. (float (* (.x v) s))
+                                   (float (* (.y v) s))))))
+
 (defn do-hit
-  "Apply reaction or destruction to the first object (never a bird).
-   Will be called a second time with objects reversed."
-  [info oth-info]
-  (when-not (or (@destroyed (:body info))
-                (= :static (body-type (:body info))))
-    (let [bod ^Body (:body info)
-          obod ^Body (:body oth-info)
-          typ (:type info)
-          otyp (:type oth-info)
-          dat @(user-data bod)
-          odat @(user-data obod)
-          resist (:resistance dat)
-          oresist (:resistance odat)
-          imp (:imp info)
-          ;; velocity multiplier, applied after usual impulse
-          velscale (cond
-                    (= otyp :yellow-bird)
-                    (if (= typ :wood)
-                      0.95
-                      0.2)
-                    (and (= otyp :blue-bird)
-                         (= typ :glass))
-                    0.95
-                    (or (= typ :glass)
-                        (= otyp :glass))
-                    0.2
-                    :else 0.75)
-          speed (v-mag (linear-velocity bod))
-          ospeed (v-mag (linear-velocity obod))
-          non-trivial? (and (>= imp 10.0)
-                            (>= (max speed ospeed) 0.5))]
-      (when non-trivial?
-        (println "impulse" imp typ "vs" otyp "resist" resist "speeds" speed ospeed)
-        (if (>= imp resist)
-          ;; destroyed
-          (do
-            (println typ "destroyed")
-            (if (:pig? info)
-              (do
-                (swap! pig-tally inc)
-                                        ;(swap! pigs dissoc bod)
-                (reset! pigs (set (remove #(= bod %) @pigs))))
-              ;; otherwise - block
-              (do
-                (swap! block-tally inc)))
-            (swap! destroyed conj (:fixt info))
-            (destroy! bod)
-            ;; let bird smash through
-            (when (:bird oth-info)
-              ;; undo the impulse already applied to bird
-              (apply-impulse! obod (v-scale (:normal info) imp)
-                              (:pt oth-info))))
-          ;; not destroyed - but apply damage
-          (let [new-resist (- resist imp)]
-            (println typ " damaged, scaled velocity by" velscale)
-            (.setLinearVelocity bod (vec2 (v-scale (linear-velocity bod) velscale)))
-            (swap! (user-data bod) update-in [:resistance] - imp)
-            (let [damage (if (:pig? info) pig-damage block-damage)]
-              (swap! damage + imp))))
-        (when (:bird oth-info)
-          (println "bird hit" typ ", scaled velocity by" velscale)
-          (.setLinearVelocity obod (vec2 (v-scale (linear-velocity obod) velscale))))))))
+  "Apply reaction or destruction to the body of fixture fixt (never a
+   bird) from contact i of the contact buffer, with fixture ofixt.
+   Will be called a second time with fixtures reversed."
+  [cb i fixt ofixt]
+  (let [bod ^Body (body fixt)]
+    (when-not (= :static (body-type bod))
+      (let [imp (contacts/impulse cb i)]
+        (when (>= imp damage-impulse)
+          (let [obod ^Body (body ofixt)
+                dat ^BodyData (user-data bod)
+                odat ^BodyData (user-data obod)
+                typ (.type dat)
+                otyp (.type odat)
+                ^doubles res (.resistance dat)
+                resist (aget res 0)
+                ;; velocity multiplier, applied after usual impulse
+                velscale (cond
+                          (= otyp :yellow-bird)
+                          (if (= typ :wood)
+                            0.95
+                            0.2)
+                          (and (= otyp :blue-bird)
+                               (= typ :glass))
+                          0.95
+                          (or (= typ :glass)
+                              (= otyp :glass))
+                          0.2
+                          :else 0.75)
+                speed (speed-of bod)
+                ospeed (speed-of obod)]
+            (when (>= (max speed ospeed) 0.5)
+              (event! {:event :hit :type typ :other otyp :imp imp
+                       :resist resist :speed speed :other-speed ospeed})
+              (if (>= imp resist)
+                ;; destroyed
+                (do
+                  (event! {:event :destroyed :type typ})
+                  (if (.pig dat)
+                    (do
+                      (swap! pig-tally inc)
+                      (reset! pigs (set (remove #(= bod %) @pigs))))
+                    ;; otherwise - block
+                    (do
+                      (swap! block-tally inc)))
+                  (swap! destroyed conj fixt)
+                  ;; deactivate rather than destroy, so restore-world! can
+                  ;; bring it back
+                  (.setActive bod false)
+                  ;; let bird smash through
+                  (when (.bird odat)
+                    ;; undo the impulse already applied to bird; the
+                    ;; buffered normal points from fixture A to B
+                    (let [[nx ny] (contacts/contact-normal cb i)
+                          s (if (identical? fixt (contacts/fixture-a cb i))
+                              (- imp) imp)]
+                      (apply-impulse! obod [(* nx s) (* ny s)]
+                                      (contacts/contact-point cb i)))))
+                ;; not destroyed - but apply damage
+                (do
+                  (event! {:event :damaged :type typ :imp imp
+                           :velscale velscale})
+                  (scale-velocity! bod velscale)
+                  (aset res 0 (- resist imp))
+                  (let [damage (if (.pig dat) pig-damage block-damage)]
+                    (swap! damage + imp))))
+              (when (.bird odat)
+                (event! {:event :bird-hit :type typ :bird otyp
+                         :velscale velscale})
+                (scale-velocity! obod velscale)))))))))
 
 (defn game-step!
   []
-  (doseq [ctct  @contact-buffer] 
-    (let [[fixt-a fixt-b pt normal imp] ctct
-          fixts (list fixt-a fixt-b)]
-      (when-not (some @destroyed fixts)
-        (let [infos (map (fn [fx]
-                           (let [bod (body fx)
-                                 dat @(user-data bod)
-                                 type (:type dat)
-                                 bird (bird-types type)
-                                 pig? (= :pig type)]
-                             {:fixt fx :body bod
-                              :type type :bird bird :pig? pig?}))
-                         fixts)
-              info-a (assoc (first infos) :pt pt :imp imp
-                            :normal (mapv - normal)) ;; pointing from B to A
-              info-b (assoc (second infos) :pt pt :imp imp
-                            :normal normal)]
-          (when-not (:bird info-b)
-            (do-hit info-b info-a))
-          (when-not (:bird info-a)
-            (do-hit info-a info-b))))))
-    (reset! contact-buffer []))
+  (let [cb contact-buffer]
+    (dotimes [i (contacts/contact-count cb)]
+      (let [fixt-a (contacts/fixture-a cb i)
+            fixt-b (contacts/fixture-b cb i)]
+        (when-not (or (@destroyed fixt-a) (@destroyed fixt-b))
+          (let [bird-a (.bird ^BodyData (user-data (body fixt-a)))
+                bird-b (.bird ^BodyData (user-data (body fixt-b)))]
+            (when-not bird-b
+              (do-hit cb i fixt-b fixt-a))
+            (when-not bird-a
+              (do-hit cb i fixt-a fixt-b))))))
+    (contacts/clear-contacts! cb)))
+
+;; ## time budgets
+;;
+;; Simulations run on the calling thread and check the clock between
+;; steps, so when one runs out of time it simply stops: nothing is
+;; left running in the background to disturb the world afterwards.
+
+(def ^:dynamic *shot-budget-ms*
+  "Wall-clock time allowed to simulate one shot."
+  2000)
+
+(def ^:dynamic *turn-budget-ms*
+  "Wall-clock time allowed for ranked-shots to evaluate its candidates."
+  10000)
+
+(def ^:dynamic *deadline*
+  "System/nanoTime by which the current decision must be made, or nil."
+  nil)
+
+(defn deadline-after
+  [ms]
+  (+ (System/nanoTime) (* ms 1000000)))
+
+(defn expired?
+  [deadline]
+  (and deadline (>= (System/nanoTime) deadline)))
+
+(def fine-fidelity
+  "How finely shots are simulated: the timestep dt and the constraint
+   solver's velocity and position iterations, with the horizon in
+   seconds simulated beyond the bird's flight time."
+  {:dt (/ 1.0 20.0) :velocity-iterations 8 :position-iterations 3
+   :horizon 3.0})
+
+(def coarse-fidelity
+  "Cheaper settings for screening many candidate shots: about a sixth
+   of the cost of fine-fidelity per shot. Much beyond this timestep
+   the contacts become unstable and cost more, not less."
+  {:dt (/ 1.0 8.0) :velocity-iterations 3 :position-iterations 1
+   :horizon 0.5})
+
+(def ^:dynamic *fidelity* fine-fidelity)
+
+(def ^:dynamic *settle-window*
+  "Seconds of simulated time with no damaging contacts, and nothing
+   much moving, after which a shot is taken to have settled. nil
+   always simulates the full duration."
+  1.0)
+
+(defn kinetic-energy
+  "Total kinetic energy of the awake dynamic bodies, other than the
+   bird. Nothing slows a bird rolling along the ground, so it is left
+   to the absence of damaging contacts to show that it is harmless."
+  []
+  (reduce + 0.0
+          (for [^Body b (live-bodies)
+                :when (and (.isAwake b)
+                           (= :dynamic (body-type b))
+                           (not= b @bird))]
+            (let [v (.getLinearVelocity b)
+                  w (.getAngularVelocity b)]
+              (* 0.5 (+ (* (.getMass b) (.lengthSquared v))
+                        (* (.getInertia b) w w)))))))
+
+(defn- damaging-contact?
+  []
+  (>= (contacts/max-impulse contact-buffer) damage-impulse))
 
 (defn simulate-for
-  [dur]
-  (let [start-t @world-time]
-    (while (< @world-time (+ start-t dur))
-      (step! (/ 1.0 20.0))
-      (game-step!))))
+  "Steps the world for dur seconds of simulated time, or until the
+   deadline (in System/nanoTime) if one is given. Stops early once no
+   pigs remain, or once the scene has settled for *settle-window*
+   seconds, counted from settle-from seconds in (the bird's flight
+   time: the bird is not in the energy sum, so until it lands nothing
+   shows that it is still on its way). Returns {:steps :steps-saved},
+   or nil if the deadline cut it short."
+  [dur & [deadline settle-from]]
+  ;; counts its own time, as world-time is shared by all worlds
+  (let [{:keys [dt velocity-iterations position-iterations]} *fidelity*
+        dt (double dt)
+        settle-from (double (or settle-from 0.0))
+        window *settle-window*
+        remaining (fn [t] (long (Math/ceil (/ (- dur t) dt))))]
+    (loop [t 0.0
+           steps 0
+           quiet 0.0]
+      (cond
+       (not (< t dur))
+       {:steps steps :steps-saved 0}
+       (and window
+            (or (empty? @pigs)
+                (>= quiet window)))
+       {:steps steps :steps-saved (remaining t)}
+       (expired? deadline)
+       nil
+       :else
+       (do
+         (step! dt velocity-iterations position-iterations)
+         (let [damaging? (damaging-contact?)]
+           (game-step!)
+           (recur (+ t dt)
+                  (inc steps)
+                  (if (or (< t settle-from)
+                          damaging?
+                          (>= (kinetic-energy) settle-energy))
+                    0.0
+                    (+ quiet dt)))))))))
 
 (defn simulate-shot! 
+  "Simulates a shot at *fidelity* until things should have settled, within
+   *shot-budget-ms* and any *deadline*. Returns its effects so far,
+   with :partial? true if it was cut short, and the :steps-saved by
+   stopping once the scene settled. When *record-events*, also returns
+   the shot's :events (and how many were :events-dropped, if the log
+   overflowed)."
   [shot] 
-  (try 
-    (shoot! (:angle shot)) 
-    (let [eff-f (future (simulate-for (+ (:sim-flight shot) 3.0)))]
-      (deref eff-f 2000 {:pigs-done @pig-tally 
-                        :pig-damage @pig-damage 
-                        :blocks-gone @block-tally}))
-    (catch Exception e 
-      (println "simulate-shot!:" (.getMessage e))))
-  {:pigs-done @pig-tally 
-   :pig-damage @pig-damage 
-   :blocks-gone @block-tally})
+  (events/clear-events! event-log)
+  (let [deadline (min (deadline-after *shot-budget-ms*)
+                      (or *deadline* Long/MAX_VALUE))
+        result (try 
+                 (shoot! (:angle shot)) 
+                 (simulate-for (+ (:sim-flight shot) (:horizon *fidelity*))
+                               deadline (:sim-flight shot))
+                 (catch Exception e 
+                   (println "simulate-shot!:" (.getMessage e))
+                   nil))]
+    (merge {:pigs-done @pig-tally 
+            :pig-damage @pig-damage 
+            :blocks-gone @block-tally}
+           (if result
+             (select-keys result [:steps-saved])
+             {:partial? true})
+           (when *record-events*
+             (let [dropped (events/dropped-count event-log)]
+               (merge {:events (events/events event-log)}
+                      (when (pos? dropped) {:events-dropped dropped})))))))
+
+(defn print-effects
+  "Prints the effects of a shot, with one line per event."
+  [effects]
+  (println "EFFECTS:" (dissoc effects :events))
+  (doseq [ev (:events effects)]
+    (println "  " (events/describe ev))))
 
 (defn poss-targets
   []
   (let [world-ground (second (px-to-world [0 ground-level]))
         poss (remove #((conj bird-types :ground :static-wood)
-                       (:type @(user-data %))) (bodyseq))
+                       (object-type %)) (live-bodies))
         by-potential (sort-by (fn [bod] 
                               (let [y (second (center bod)) 
                                     h (- y world-ground)]
@@ -353,7 +646,7 @@ The normal points from A to B."
         targets (concat @pigs (take-last 1 by-potential)) 
         targets-info (map (fn [o] 
                             {:pt (center o) 
-                             :type (:type @(user-data o))}) 
+                             :type (object-type o)}) 
                           targets)
         ;; try ends of horizontal beams
         beam-pts (map (fn [fx]
@@ -367,38 +660,263 @@ The normal points from A to B."
                                     x-hi (+ xc (/ x-span 2))
                                     y-lo (- yc (/ y-span 2))
                                     y-hi (+ yc (/ y-span 2))]
-                                (println [[x-lo x-hi] [y-lo y-hi] world-ground])
                                 (when (> y-lo (+ world-ground 0.2))
                                   [x-lo (/ (+ y-lo y-hi) 2)])))))))
-                      (fixtureseq))
+                      (live-fixtures))
         beam-info (map (fn [pt] {:pt pt :type :beam})
                        (remove nil? beam-pts))
         targets-info (concat targets-info (take 3 beam-info))]
     targets-info))
 
+(def ^:dynamic *sim-threads*
+  "How many simulation contexts ranked-shots evaluates candidates on."
+  (.availableProcessors (Runtime/getRuntime)))
+
+(def sim-pool
+  "Fork-join pool with the given number of threads (one per size)."
+  (memoize (fn [n] (ForkJoinPool. (int n)))))
+
+(def skipped-effects
+  {:pigs-done 0 :pig-damage 0.0 :blocks-gone 0 :skipped? true})
+
+(defn replay-shots!
+  "Simulates shots in turn, each with the next bird, as planned ahead
+   of time: the world is left as the sequence would leave it."
+  [shots]
+  (binding [*record-events* false]
+    (doseq [shot shots]
+      (simulate-shot! shot)
+      (next-bird!))))
+
+(def ^:dynamic *memoize-sims*
+  "Whether evaluate-shots takes the effects of shots simulated before,
+   in the same scene after the same shots and at the same fidelity,
+   from uglyboids.sim-cache rather than simulating them again."
+  true)
+
+(defn evaluate-shots
+  "Simulates each shot from the initial world of scene, after the
+   shots of prefix if given, on n contexts in parallel. The prefix is
+   always replayed at fine-fidelity, so that a coarse screen starts
+   from the same world as the shots it screens for. Each context
+   builds its world once and rewinds it after every shot it takes from
+   the common queue. Shots not started by the deadline get
+   skipped-effects. With *memoize-sims*, shots simulated before are
+   not simulated again. Returns the effects of the shots, in order;
+   those of a prefix are included."
+  [scene shots n deadline & [prefix]]
+  (let [scene-key (when *memoize-sims*
+                    (sim-cache/scene-key scene prefix
+                                         [*fidelity* *settle-window*]))
+        results (object-array (for [shot shots]
+                                (or (when scene-key
+                                      (sim-cache/lookup scene-key shot))
+                                    skipped-effects)))
+        queue (ConcurrentLinkedQueue.
+               ^java.util.Collection
+               (vec (for [[i shot] (map-indexed vector shots)
+                          :when (:skipped? (aget results i))]
+                      [i shot])))
+        ;; carries the caller's bindings (budgets, *out*) to the pool
+        worker (bound-fn []
+                 (with-sim-context (sim-context)
+                   (binding [*deadline* deadline]
+                     (setup-world! scene)
+                     (binding [*fidelity* fine-fidelity]
+                       (replay-shots! prefix))
+                     (let [initial (snapshot-world)]
+                       (loop []
+                         (when-not (expired? deadline)
+                           (when-let [[i shot] (.poll queue)]
+                             (let [effects (simulate-shot! shot)]
+                               (aset results i effects)
+                               (when scene-key
+                                 (sim-cache/store! scene-key shot effects)))
+                             (restore-world! initial)
+                             (recur))))))))
+        n (max 1 (min n (.size queue)))]
+    (when-not (.isEmpty queue)
+      (doseq [f (.invokeAll ^ForkJoinPool (sim-pool n)
+                            ^java.util.Collection (vec (repeat n worker)))]
+        (.get ^Future f)))
+    (vec results)))
+
+(def ^:dynamic *precheck*
+  "Whether ranked-shots passes over shots whose flight path first
+   meets static geometry (see uglyboids.trajectory), rather than
+   simulating them."
+  true)
+
+(defn flight-px
+  "Points along the analytic flight path of a shot from the launch
+   point, in pixels, every dt seconds; endless."
+  [shot dt]
+  (let [[x0 y0] @focus-world
+        ang (double (:angle shot))
+        vx (* launch-speed (Math/cos ang))
+        vy (* launch-speed (Math/sin ang))
+        g 10.0]
+    (map (fn [i]
+           (let [t (* i dt)]
+             (world-to-px [(+ x0 (* vx t))
+                           (- (+ y0 (* vy t)) (* 0.5 g t t))])))
+         (range))))
+
+(def ^:private scene-grid
+  "The object grid of the last scene checked, with that scene."
+  (atom nil))
+
+(def ^:private ground-obj
+  "The ground that setup-world! adds to every world, as a scene object.
+   Vision leaves it out of the scene's :objs."
+  {:type :ground
+   :shape :box
+   :pos [(/ px-width 2) (/ (+ ground-level px-height) 2)]
+   :wh [px-width (- px-height ground-level)]})
+
+(defn first-hit
+  "The first scene object that the flight path of a shot meets (the
+   ground included), or nil (if there is none, or the shot has no
+   angle)."
+  [scene shot]
+  (when-not (Double/isNaN (:angle shot))
+    (let [[s grid] @scene-grid
+          grid (if (identical? s scene)
+                 grid
+                 (let [grid (trajectory/obj-grid (conj (vec (:objs scene))
+                                                       ground-obj))]
+                   (reset! scene-grid [scene grid])
+                   grid))
+          r (if @bird
+              (:radius-px (bird-attrs (object-type @bird)))
+              (:radius-px (:red-bird bird-attrs)))]
+      ;; samples about a radius apart, so nothing is stepped over
+      (trajectory/first-hit grid
+                            (flight-px shot (/ r launch-speed
+                                               (world-to-px-scale)))
+                            r))))
+
+(def ^:dynamic *search*
+  "How ranked-shots searches. nil simulates one direct and one mortar
+   shot at each target, all at *fidelity*. Otherwise candidates are
+   also aimed :aim-offsets (in world units, along x) either side of
+   each target, all are screened at :coarse fidelity, and only the
+   best :top-k of them are simulated again at *fidelity*."
+  {:aim-offsets [-0.5 0.0 0.5]
+   :top-k 4
+   :coarse coarse-fidelity})
+
+(def search-stats
+  "How often the coarse ranking of ranked-shots has disagreed with the
+   fine one: over its decisions, those where the fine favourite was
+   not the coarse favourite, and the pairs of survivors that the two
+   rankings order differently."
+  (atom {:decisions 0 :best-moved 0 :pairs 0 :pairs-swapped 0}))
+
+(def ^:private effects-rank (juxt :pigs-done :pig-damage :blocks-gone))
+
+(defn- by-effects
+  "Indices of effects, best first."
+  [effects]
+  (reverse (sort-by #(effects-rank (nth effects %))
+                    (range (count effects)))))
+
+(defn- record-disagreement!
+  "Compares the ranking of the survivors (indices, in coarse order) by
+   their coarse effects with that by their fine effects."
+  [survivors fine-effects]
+  (let [fine-rank (zipmap survivors (map effects-rank fine-effects))
+        pairs (for [[i a] (map-indexed vector survivors)
+                    b (drop (inc i) survivors)]
+                [a b])
+        ;; coarse order puts a before b, so swapped if fine puts b first
+        swapped (count (filter (fn [[a b]]
+                                 (pos? (compare (fine-rank b) (fine-rank a))))
+                               pairs))
+        ranks (map effects-rank fine-effects)
+        ;; position in coarse order of the first of the fine favourites
+        best (when (seq ranks)
+               (let [top (last (sort ranks))]
+                 (count (take-while #(not= top %) ranks))))
+        moved? (and best (pos? best))]
+    (println (str "coarse-to-fine: refined " (count survivors)
+                  ", best was coarse #" (when best (inc best))
+                  ", " swapped " of " (count pairs) " pairs reordered"))
+    (swap! search-stats
+           (fn [st]
+             (-> st
+                 (update-in [:decisions] inc)
+                 (update-in [:best-moved] + (if moved? 1 0))
+                 (update-in [:pairs] + (count pairs))
+                 (update-in [:pairs-swapped] + swapped))))))
+
+(def ^:private shot-rank
+  "Effects first; then, all else equal, a path that meets a pig first."
+  (juxt :pigs-done :pig-damage :blocks-gone
+        #(if (= :pig (:first-hit %)) 1 0)))
+
 (defn ranked-shots 
-  [] 
+  "Candidate shots with their effects, best first, searched as
+   *search* says; shots only screened coarsely come after the refined
+   ones, marked :coarse? true. Each shot has the type of the scene
+   object its flight path meets first as :first-hit; with *precheck*,
+   those first meeting static geometry are not simulated (unless all
+   are), and come last, marked :blocked? true. With a prefix of
+   planned shots, the current world must be the one they leave (see
+   replay-shots!)."
+  [& [prefix]] 
   (let [targets-info (poss-targets)
-        eval-shots (doall (for [{:keys [pt type]} targets-info
-                                direct? [true false]]
-                            (let [tap-frac (+ 0.8 (rand 0.25))
-                                  shot (shot-at pt direct? tap-frac)]
-                              (println "simulating" (if direct? "direct" "mortar")
-                                       "shot at" type "angle" (:angle shot))
-                              (let [effects (simulate-shot! shot)]
-                                (println "EFFECTS:" effects)
-                                ;; hoping we can reset everything this way. 
-                                ;; problem might be any stored JBox2D objects?
-                                (setup-world! @scene)
-                                (merge shot effects {:target-type type})))))]
-    (reverse (sort-by (juxt :pigs-done :pig-damage :blocks-gone)
-                      eval-shots))))
-
-(defn choose-shot
-  [i]
-  (let [rs (ranked-shots)
-        i-mod (mod i (- (count rs) 5))]
-    (nth rs (+ i-mod (rand-int 3)))))
+        offsets (or (:aim-offsets *search*) [0.0])
+        candidates (vec (for [{:keys [pt type]} targets-info
+                              off offsets
+                              direct? [true false]]
+                          (let [tap-frac (+ 0.8 (rand 0.25))
+                                shot (shot-at (v-add pt [off 0.0]) direct?
+                                              tap-frac)
+                                hit (:type (first-hit @scene shot))]
+                            (println "simulating" (if direct? "direct" "mortar")
+                                     "shot at" type "angle" (:angle shot)
+                                     "first hitting" hit)
+                            (assoc shot :target-type type :first-hit hit))))
+        blocked? (fn [i] (and *precheck*
+                              (= :static (:first-hit (candidates i)))))
+        live (let [live (vec (remove blocked? (range (count candidates))))]
+               (if (seq live) live (vec (range (count candidates)))))
+        deadline (or *deadline* (deadline-after *turn-budget-ms*))
+        evaluate (fn [shots]
+                    (evaluate-shots @scene shots *sim-threads* deadline
+                                    prefix))
+        [survivors effects coarse-effects]
+        (if *search*
+          (let [coarse (binding [*fidelity* (:coarse *search*)
+                                 *record-events* false]
+                         (evaluate (mapv candidates live)))
+                survivors (mapv live (take (:top-k *search*)
+                                           (by-effects coarse)))
+                fine (evaluate (mapv candidates survivors))]
+            (record-disagreement! survivors fine)
+            [survivors fine (zipmap live coarse)])
+          [live (evaluate (mapv candidates live)) nil])
+        eval-shots (map (fn [i effects]
+                          (print-effects effects)
+                          (merge (candidates i) effects))
+                        survivors effects)
+        screened (let [refined (set survivors)]
+                   (for [i live
+                         :when (not (refined i))]
+                     (merge (candidates i) (coarse-effects i)
+                            {:coarse? true})))
+        passed-over (let [live (set live)]
+                      (for [i (range (count candidates))
+                            :when (not (live i))]
+                        (merge (candidates i) skipped-effects
+                               {:blocked? true})))]
+    (println "settling saved" (reduce + (keep :steps-saved effects))
+             "steps over" (count effects) "shots;"
+             (count passed-over) "shots blocked")
+    (concat (reverse (sort-by shot-rank eval-shots))
+            (reverse (sort-by shot-rank screened))
+            passed-over)))
 
 (defn choose-shot-naive
   [i]
@@ -409,10 +927,165 @@ The normal points from A to B."
         shot (shot-at pt direct? tap-frac)]
     (assoc shot :target-type type)))
 
+(def ^:dynamic *optimizer*
+  "Settings of optimize-shot: its time :budget-ms (within any
+   *deadline*), the initial :step in launch angle (radians), the
+   chance to :explore a random seed rather than refine the best one,
+   and how many shots each round simulates, as a :batch, such as
+   {:budget-ms 3000 :step 0.05 :explore 0.3 :batch 4}. When nil (the
+   default, until it has been compared with the coarse-to-fine
+   search), choose-shot picks from ranked-shots instead."
+  nil)
+
+(def ^:private seed-tap-frac
+  "Tap time of optimizer seeds, as a fraction of the flight: the middle
+   of the range ranked-shots draws from."
+  0.925)
+
+(defn with-angle
+  "A shot like shot, launched at angle ang instead, with its flight
+   (to the x of its target point) and tap times to match."
+  [shot ang]
+  (let [sim-flight (calculate-flight-time @focus-world (:target-pt shot)
+                                          launch-speed 10.0 ang)
+        ab-flight (* sim-flight 0.7)
+        tap-frac (:tap-frac shot)]
+    (assoc shot
+      :angle ang
+      :sim-flight sim-flight
+      :ab-flight ab-flight
+      :sim-tap-t (* sim-flight tap-frac)
+      :ab-tap-t (* ab-flight tap-frac))))
+
+(defn- seed-shots
+  "One direct and one mortar shot at each of poss-targets, tapping at
+   seed-tap-frac, leaving out unreachable targets and (with
+   *precheck*) those blocked by static geometry, unless that is all."
+  []
+  (let [shots (for [{:keys [pt type]} (poss-targets)
+                    direct? [true false]
+                    :let [shot (shot-at pt direct? seed-tap-frac)]
+                    :when (not (Double/isNaN (:angle shot)))]
+                (assoc shot :target-type type
+                       :first-hit (:type (first-hit @scene shot))))
+        clear (remove #(and *precheck* (= :static (:first-hit %))) shots)]
+    (vec (if (seq clear) clear shots))))
+
+(defn optimized-shots
+  "Searches launch angles for the best shots, within the :budget-ms of
+   *optimizer*, stopping when the time is up (or once a shot takes
+   every pig). Each seed shot (see seed-shots) is an arm holding its
+   best shot so far and a step size. A round picks a batch of arms,
+   mostly the best, sometimes one at random, and simulates each at an
+   angle a random step from its best; an arm keeps an angle no worse
+   than its best, and widens its step on improvement or narrows it on
+   a miss. Tap times are not simulated, so this is a search in angle
+   only: tap-frac stays at that of the seeds. Returns the best shot of each arm, with its effects and how
+   many :evaluations the search took, best first. With a prefix of
+   planned shots, the current world must be the one they leave (see
+   replay-shots!)."
+  [& [prefix]]
+  (let [{:keys [budget-ms step explore batch]} *optimizer*
+        deadline (min (deadline-after budget-ms)
+                      (or *deadline* Long/MAX_VALUE))
+        all-pigs (count @pigs)
+        rng (java.util.Random.)
+        ;; [shot effects] for each shot, in order; shots not reached
+        ;; by the deadline have skipped-effects
+        evaluate (fn [shots]
+                   (binding [*record-events* false]
+                     (map vector shots
+                          (evaluate-shots @scene shots *sim-threads*
+                                          deadline prefix))))
+        simulated? (fn [[shot effects]] (not (:skipped? effects)))
+        rank (fn [{:keys [shot effects]}] (shot-rank (merge shot effects)))
+        arm (fn [[shot effects] step] {:shot shot :effects effects :step step})]
+    (loop [arms (vec (for [se (evaluate (seed-shots))
+                           :when (simulated? se)]
+                       (arm se step)))
+           n (count arms)]
+      (let [ranked (reverse (sort-by rank arms))
+            top (first ranked)]
+        (if (or (empty? arms)
+                (expired? deadline)
+                (>= (:pigs-done (:effects top)) all-pigs))
+          (do (println "optimize-shot:" n "shots simulated")
+              (for [{:keys [shot effects]} ranked]
+                (merge shot effects {:evaluations n})))
+          (let [picks (vec (for [_ (range batch)]
+                             (if (< (rand) explore)
+                               (rand-int (count arms))
+                               (.indexOf ^java.util.List arms top))))
+                tries (mapv (fn [i]
+                              (let [{:keys [shot step]} (arms i)
+                                    ang (+ (:angle shot)
+                                           (* step (.nextGaussian rng)))
+                                    ang (max (- 0.05 (/ PI 2))
+                                             (min (- (/ PI 2) 0.05) ang))
+                                    shot (with-angle shot ang)]
+                                (assoc shot :first-hit
+                                       (:type (first-hit @scene shot)))))
+                            picks)
+                ;; in the order of picks, so each goes to its own arm
+                results (evaluate tries)
+                arms (reduce (fn [arms [i [shot effects :as se]]]
+                               (let [{old-step :step :as old} (arms i)
+                                     c (compare (rank {:shot shot :effects effects})
+                                                (rank old))]
+                                 (cond
+                                  (not (simulated? se)) arms
+                                  (pos? c) (assoc arms i (arm se (* old-step 1.5)))
+                                  (neg? c) (assoc-in arms [i :step] (* old-step 0.7))
+                                  :else (assoc arms i (arm se old-step)))))
+                             arms
+                             (map vector picks results))]
+            (recur arms (+ n (count (filter simulated? results))))))))))
+
+(defn optimize-shot
+  "The best of optimized-shots, or nil if there is nothing to aim at."
+  [& [prefix]]
+  (first (optimized-shots prefix)))
+
+(defn choose-shot
+  "The shot to take on attempt i at the current level. With
+   *optimizer*, the best optimized shot first, then on later attempts
+   the best of other targets in turn, so that a retry does not repeat
+   a shot that failed in the game; otherwise one of the best of
+   ranked-shots."
+  [i]
+  (if *optimizer*
+    (let [shots (vec (optimized-shots))]
+      (if (seq shots)
+        (nth shots (mod i (count shots)))
+        (choose-shot-naive i)))
+    (let [rs (ranked-shots)
+          i-mod (mod i (- (count rs) 5))]
+      (nth rs (+ i-mod (rand-int 3))))))
+
+(defn plan-shots
+  "Picks a sequence of up to n shots ahead of time, for the birds in
+   turn, each the best ranked in the world that simulating the ones
+   before it leaves. Stops early when no birds or pigs remain."
+  [n]
+  (setup-world! @scene)
+  (loop [plan []]
+    (if (or (= n (count plan))
+            (nil? @bird)
+            (empty? @pigs))
+      plan
+      (let [shot (first (remove #(Double/isNaN (:angle %))
+                                (ranked-shots plan)))]
+        (if-not shot
+          plan
+          (do
+            (replay-shots! [shot])
+            (recur (conj plan shot))))))))
+
 (defn choose-shot-simple
   []
-  (let [world-ground (second (px-to-world [0 ground-level]))
-        poss (remove #(bird-types (:type @(user-data %))) (bodyseq))
+  (let [initial (snapshot-world)
+        world-ground (second (px-to-world [0 ground-level]))
+        poss (remove #(bird-types (object-type %)) (live-bodies))
         by-height (sort-by (fn [bod] 
                              (let [y (second (center bod)) 
                                    h (- y world-ground)] 
@@ -421,7 +1094,7 @@ The normal points from A to B."
         targets (concat [(rand-nth (seq @pigs)) (rand-nth (seq @pigs))]
                         (take-last 2 by-height))
         target (rand-nth targets)
-        type (:type @(user-data target))
+        type (object-type target)
         direct? (> (rand) 0.6)
         tap-frac (+ 0.8 (rand 0.25))
         shot (shot-at (center target) direct? tap-frac)
@@ -429,9 +1102,6 @@ The normal points from A to B."
     (println "simulating" (if direct? "direct" "mortar")
              "shot at" type "angle" (:angle shot))
     (let [effects (simulate-shot! shot)]
-      (println "EFFECTS:" effects)
-      ;; hoping we can reset everything this way. 
-      ;; problem might be any stored JBox2D objects?
-      (setup-world! @scene)
-      (println "simulated shot effects: " effects)
+      (print-effects effects)
+      (restore-world! initial)
       (merge shot effects {:target-type type}))))
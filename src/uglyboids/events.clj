@@ -0,0 +1,65 @@
+(ns uglyboids.events
+  "A bounded record of simulation events (hits, destructions, damage,
+   bird deflections), each a map with an :event key. Events are kept
+   in a ring buffer of fixed capacity: once it is full, each new event
+   overwrites the oldest.")
+
+;; Slots hold the events; the single element of total counts every
+;; event recorded since the last clear, so the newest is in slot
+;; (total - 1) mod capacity.
+
+(deftype EventRing [^objects slots ^longs total])
+
+(defn event-ring
+  [capacity]
+  (EventRing. (object-array capacity) (long-array 1)))
+
+(defn record!
+  "Adds event ev to ring."
+  [^EventRing ring ev]
+  (let [^objects slots (.slots ring)
+        ^longs total (.total ring)
+        n (aget total 0)]
+    (aset slots (rem n (alength slots)) ev)
+    (aset total 0 (inc n))
+    ring))
+
+(defn clear-events!
+  [^EventRing ring]
+  (java.util.Arrays/fill ^objects (.slots ring) nil)
+  (aset ^longs (.total ring) 0 0)
+  ring)
+
+(defn event-count
+  "Number of events recorded since the last clear, including any that
+   have since been overwritten."
+  [^EventRing ring]
+  (aget ^longs (.total ring) 0))
+
+(defn dropped-count
+  "Number of events overwritten since the last clear."
+  [^EventRing ring]
+  (max 0 (- (event-count ring) (alength ^objects (.slots ring)))))
+
+(defn events
+  "The events still held, oldest first."
+  [^EventRing ring]
+  (let [^objects slots (.slots ring)
+        cap (alength slots)
+        n (event-count ring)
+        start (max 0 (- n cap))]
+    (mapv #(aget slots (rem % cap)) (range start n))))
+
+(defn describe
+  "One line of explanation for event ev."
+  [ev]
+  (case (:event ev)
+    :hit (str "impulse " (:imp ev) " " (:type ev) " vs " (:other ev)
+              " resist " (:resist ev)
+              " speeds " (:speed ev) " " (:other-speed ev))
+    :destroyed (str (:type ev) " destroyed")
+    :damaged (str (:type ev) " damaged by " (:imp ev)
+                  ", scaled velocity by " (:velscale ev))
+    :bird-hit (str (:bird ev) " hit " (:type ev)
+                   ", scaled velocity by " (:velscale ev))
+    (pr-str ev)))
@@ -73,7 +73,11 @@
                      ;; default
                      uglyboids.levels.level-1-2/level)]
     (reset! scene load-scene)
-    (reset! step-fn game-step!)
+    ;; the testbed draws every body in the world, and this one is
+    ;; never restored, so destroyed bodies are removed for real
+    (reset! step-fn (fn []
+                      (game-step!)
+                      (sweep-destroyed!)))
     (setup-world! load-scene))
   (quil/defsketch the-sketch
     :title "Ugly boids"
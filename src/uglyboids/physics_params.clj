@@ -8,8 +8,8 @@
 
 ;; size of world (in m) can vary across levels!
 (def base-world-width 100)
-(def world-width (atom base-world-width))
-(def world-height (atom (/ @world-width aspect-ratio)))
+(def ^:dynamic world-width (atom base-world-width))
+(def ^:dynamic world-height (atom (/ @world-width aspect-ratio)))
 
 (def bird-types
   #{:red-bird :blue-bird :yellow-bird})
@@ -54,3 +54,10 @@
 
 (def linear-damping 0.1)
 (def angular-damping 5)
+
+;; contact impulses below this can not damage anything
+(def damage-impulse 10.0)
+
+;; total kinetic energy (in J) of moving bodies below which a
+;; simulated scene is considered to be at rest
+(def settle-energy 1.0)
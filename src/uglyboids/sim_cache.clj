@@ -0,0 +1,107 @@
+(ns uglyboids.sim-cache
+  "Effects of simulated shots, cached by a fingerprint of the scene
+   they were simulated in and the parameters of the shot, so that
+   replaying a level does not simulate the same candidates again.
+   Persisted under *cache-dir* when that is set; it is nil (memory
+   only) by default. *cache-dir* and *capacity* are read when the
+   cache is built, at first use or by reset-cache!, so change them
+   and call reset-cache! to take effect."
+  (:require [uglyboids.cache :as cache]
+            [clojure.walk :as walk])
+  (:import (java.security MessageDigest)))
+
+;; bump when the simulation changes, so old persisted effects are ignored
+(def sim-version 3)
+
+(def ^:dynamic *cache-dir*
+  "Directory to persist effects under, such as \"cache/sims/\", or nil."
+  nil)
+
+(def ^:dynamic *capacity* 4096)
+
+(defonce ^:private current-cache (atom nil))
+
+(defn reset-cache!
+  "Replaces the cache with an empty one of *capacity* entries, persisted
+   under *cache-dir* as bound now (entries already there are found
+   again). Returns the new cache."
+  []
+  (let [c (cache/cache *capacity* *cache-dir*)]
+    (reset! current-cache c)
+    c))
+
+(defn- sim-cache
+  "The cache, built from the current bindings on first use."
+  []
+  (or @current-cache
+      (locking current-cache
+        (or @current-cache (reset-cache!)))))
+
+(defn- quantize
+  "Rounds floating point numbers to a tenth, so that scenes differing
+   only by rounding noise in vision have the same fingerprint."
+  [x]
+  (if (float? x)
+    (/ (Math/round (* 10.0 (double x))) 10.0)
+    x))
+
+(defn- sha1-hex
+  [^String s]
+  (let [md (MessageDigest/getInstance "SHA-1")]
+    (apply str (map #(format "%02x" %)
+                    (.digest md (.getBytes s "UTF-8"))))))
+
+(defn- shot-params
+  "What the simulation takes from a shot: the angle it is launched at
+   and how long its flight is followed. Taps are not simulated."
+  [{:keys [angle sim-flight]}]
+  (format "%.6f_%.3f" (double angle) (double sim-flight)))
+
+(def ^:private last-key
+  "The scene, prefix and settings last fingerprinted, with the key."
+  (atom nil))
+
+(defn scene-key
+  "Fingerprint of everything but the shot that simulating it depends
+   on: the objects, birds and scale of scene, in pixels rounded to a
+   tenth, the planned shots of prefix taken before it, and settings
+   (such as the fidelity) that affect the outcome."
+  [scene prefix settings]
+  (let [[s p ss k] @last-key]
+    (if (and (identical? s scene) (= p prefix) (= ss settings))
+      k
+      (let [objs (map #(select-keys % [:type :shape :pos :radius :wh :coords])
+                      (:objs scene))
+            fixed (assoc (select-keys scene [:birds :start :world-scale])
+                    :objs objs)
+            k (sha1-hex (pr-str [(walk/postwalk quantize fixed)
+                                 (map shot-params prefix)
+                                 settings]))]
+        (reset! last-key [scene prefix settings k])
+        k))))
+
+(defn- entry-key
+  [scene-key shot]
+  (str "v" sim-version "-" scene-key "-" (shot-params shot)))
+
+(defn lookup
+  "The cached effects of shot in the scene of scene-key, marked
+   :cached? true, or nil. Cached effects have no :events."
+  [scene-key shot]
+  (when-let [effects (cache/lookup (sim-cache) (entry-key scene-key shot))]
+    (assoc effects :cached? true)))
+
+(defn store!
+  "Caches the effects of shot in the scene of scene-key, without their
+   events, unless the simulation was cut short or skipped. Returns
+   effects."
+  [scene-key shot effects]
+  (when-not (or (:partial? effects) (:skipped? effects))
+    (cache/store! (sim-cache) (entry-key scene-key shot)
+                  (dissoc effects :events :events-dropped)))
+  effects)
+
+(defn stats
+  "Hits, disk hits and misses of the cache so far."
+  []
+  @(:stats (sim-cache)))
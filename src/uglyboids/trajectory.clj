@@ -0,0 +1,148 @@
+(ns uglyboids.trajectory
+  "Where a flight path first meets the objects of a scene, checked
+   against a uniform grid of the scene's :objs, in pixels. Much cheaper
+   than simulating, so shots that are clearly blocked can be passed
+   over.")
+
+(def cell-size
+  "Side of a grid cell, in pixels."
+  32)
+
+(def margin
+  "How far beyond its bounding box an object is entered in the grid,
+   in pixels: circles of up to this radius need look in one cell only."
+  10)
+
+(deftype ObjGrid [^long x0 ^long y0 ^long nx ^long ny ^objects cells])
+
+(defn- obj-bounds
+  "Pixel bounding box [x-lo y-lo x-hi y-hi] of a scene object, grown
+   by margin."
+  [{:keys [shape pos radius wh coords]}]
+  (let [[xl yl xh yh] (case shape
+                        :circle (let [[x y] pos]
+                                  [(- x radius) (- y radius)
+                                   (+ x radius) (+ y radius)])
+                        :box (let [[x y] pos
+                                   [w h] wh]
+                               [(- x (/ w 2)) (- y (/ h 2))
+                                (+ x (/ w 2)) (+ y (/ h 2))])
+                        (let [xs (map first coords)
+                              ys (map second coords)]
+                          [(apply min xs) (apply min ys)
+                           (apply max xs) (apply max ys)]))]
+    [(- xl margin) (- yl margin) (+ xh margin) (+ yh margin)]))
+
+(defn obj-grid
+  "A grid over the bounding box of objs, each cell holding the objects
+   whose bounding boxes (grown by margin) overlap it."
+  [objs]
+  (let [objs (filter #(or (= :circle (:shape %)) (:wh %) (seq (:coords %)))
+                     objs)
+        bounds (map obj-bounds objs)]
+    (if (empty? bounds)
+      (ObjGrid. 0 0 0 0 (object-array 0))
+      (let [x0 (long (Math/floor (double (apply min (map first bounds)))))
+            y0 (long (Math/floor (double (apply min (map second bounds)))))
+            x1 (long (Math/ceil (double (apply max (map #(nth % 2) bounds)))))
+            y1 (long (Math/ceil (double (apply max (map #(nth % 3) bounds)))))
+            nx (inc (quot (- x1 x0) cell-size))
+            ny (inc (quot (- y1 y0) cell-size))
+            cells (object-array (* nx ny))]
+        (doseq [[obj [xl yl xh yh]] (map vector objs bounds)
+                cy (range (quot (- (long yl) y0) cell-size)
+                          (inc (quot (- (long (Math/ceil (double yh))) y0)
+                                     cell-size)))
+                cx (range (quot (- (long xl) x0) cell-size)
+                          (inc (quot (- (long (Math/ceil (double xh))) x0)
+                                     cell-size)))
+                :let [i (+ (* cy nx) cx)]]
+          (aset cells i (conj (or (aget cells i) []) obj)))
+        (ObjGrid. x0 y0 nx ny cells)))))
+
+(defn- segment-dist
+  "Distance from [px py] to the segment from [ax ay] to [bx by]."
+  [px py [ax ay] [bx by]]
+  (let [px (double px) py (double py)
+        ax (double ax) ay (double ay)
+        dx (- (double bx) ax)
+        dy (- (double by) ay)
+        len2 (+ (* dx dx) (* dy dy))
+        t (if (zero? len2)
+            0.0
+            (max 0.0 (min 1.0 (/ (+ (* (- px ax) dx) (* (- py ay) dy))
+                                 len2))))
+        ex (- px (+ ax (* t dx)))
+        ey (- py (+ ay (* t dy)))]
+    (Math/sqrt (+ (* ex ex) (* ey ey)))))
+
+(defn- inside-poly?
+  [px py coords]
+  (odd? (count (filter (fn [[[ax ay] [bx by]]]
+                         (and (not= (> ay py) (> by py))
+                              (< px (+ ax (/ (* (- bx ax) (- py ay))
+                                             (- by ay))))))
+                       (map vector coords (concat (rest coords)
+                                                  (take 1 coords)))))))
+
+(defn touches?
+  "Whether a circle of radius r at [px py] meets the object."
+  [{:keys [shape pos radius wh coords]} px py r]
+  (let [px (double px)
+        py (double py)
+        r (double r)]
+    (case shape
+      :circle (let [[x y] pos
+                    dx (- px (double x))
+                    dy (- py (double y))
+                    d (+ r (double radius))]
+                (<= (+ (* dx dx) (* dy dy)) (* d d)))
+      :box (let [[x y] pos
+                 [w h] wh
+                 dx (max 0.0 (- (Math/abs (- px (double x))) (/ (double w) 2)))
+                 dy (max 0.0 (- (Math/abs (- py (double y))) (/ (double h) 2)))]
+             (<= (+ (* dx dx) (* dy dy)) (* r r)))
+      :poly (or (inside-poly? px py coords)
+                (some #(<= (segment-dist px py (first %) (second %)) r)
+                      (partition 2 1 (concat coords (take 1 coords)))))
+      :polyline (some #(<= (segment-dist px py (first %) (second %)) r)
+                      (partition 2 1 coords)))))
+
+(defn first-hit
+  "The first object of the grid met by a circle of radius r moving
+   through pts (pixel points, in order), or nil if none is met before
+   the points leave the grid below or to the right. Points above or to
+   the left of the grid may yet come into it, as from the sling."
+  [^ObjGrid grid pts r]
+  (let [x0 (.x0 grid)
+        y0 (.y0 grid)
+        nx (.nx grid)
+        ny (.ny grid)
+        ^objects cells (.cells grid)
+        r (double r)
+        reach (long (Math/ceil (/ (max 0.0 (- r margin)) cell-size)))]
+    (loop [pts pts]
+      (when-let [[px py] (first pts)]
+        (let [px (double px)
+              py (double py)
+              cx (long (Math/floor (/ (- px x0) cell-size)))
+              cy (long (Math/floor (/ (- py y0) cell-size)))]
+          (cond
+           (or (>= cx (+ nx reach)) (>= cy (+ ny reach)))
+           nil
+           (or (< cx (- reach)) (< cy (- reach)))
+           ;; left of or above everything: may yet come in
+           (recur (next pts))
+           :else
+           (or (let [gx0 (max 0 (- cx reach))
+                     gx1 (min (dec nx) (+ cx reach))
+                     gy1 (min (dec ny) (+ cy reach))]
+                 (loop [gy (max 0 (- cy reach))
+                        gx gx0]
+                   (cond
+                    (> gy gy1) nil
+                    (> gx gx1) (recur (inc gy) gx0)
+                    :else (or (some #(when (touches? % px py r) %)
+                                    (aget cells (+ (* gy nx) gx)))
+                              (recur gy (inc gx))))))
+               (recur (next pts)))))))))
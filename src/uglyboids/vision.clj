@@ -1,12 +1,16 @@
 (ns uglyboids.vision
   (:gen-class)
-  (:use (uglyboids.vision params floodfill shape-detection)
+  (:use (uglyboids.vision params floodfill shape-detection labels classify
+                         components tiles)
         uglyboids.physics-params
         seesaw.core
         seesaw.graphics)
-  (:import (java.io File)
+  (:import (java.io File ByteArrayInputStream)
            (java.awt Dimension Color Graphics)
            (java.awt.image BufferedImage)
+           (ab.framework.other RawScreenShot)
+           (java.util.concurrent ForkJoinPool Future TimeUnit
+                                 TimeoutException CancellationException)
            (javax.imageio ImageIO)
            (javax.swing JFrame JPanel)))
 
@@ -27,18 +31,27 @@
 (def max-y (- ground-level 1))
 
 ;; for tracking assignment of pixels to shapes
-(def cells (vec (for [y (range 0 px-height)]
-                  (vec (for [x (range 0 px-width)]
-                         (atom nil))))))
+(def cells (label-buffer px-width px-height))
 
 (defn get-cell
+  "Id of the shape which has claimed pixel [x y], or nil."
   [[x y]]
-  (-> cells (nth y) (nth x)))
+  (let [id (owner cells (xy-index px-width x y))]
+    (when (pos? id) id)))
+
+(defn mark-cell!
+  [[x y] id]
+  (claim! cells (xy-index px-width x y) id))
 
 (defn reset-cells!
   []
-  (doseq [cell (flatten cells)]
-    (reset! cell nil)))
+  (clear-labels! cells))
+
+;; per-pixel color classes (see uglyboids.vision.classify)
+(def classes (int-array (* px-width px-height)))
+
+;; holds converted pixels when the image is not already packed RGB
+(def pixel-buf (int-array (* px-width px-height)))
 
 (defn r-g-b
   [int-color]
@@ -62,16 +75,10 @@
 (defn test-xy
   "Tests pixel [x y] that it
    (a) is not already classified and
-   (b) matches given colors within tolerance."
-  [[x y] ^BufferedImage img colors tol]
-  (let [cell (get-cell [x y])]
-    (when (nil? @cell)
-      (let [xy-rgb (r-g-b (.getRGB img x y))]
-        (loop [colors-to-go colors]
-          (when-let [test-rgb (first colors-to-go)]
-            (if (color-within-tol? xy-rgb test-rgb tol)
-              true
-              (recur (next colors-to-go)))))))))
+   (b) matches the colors of the type with the given type bit."
+  [[x y] bit]
+  (and (nil? (get-cell [x y]))
+       (member? (aget ^ints classes (xy-index px-width x y)) bit)))
 
 (defn detect-type-from-color
   [rgb type-params]
@@ -86,16 +93,11 @@
       ;; exhausted types, return:
       nil)))
 
-(defn scan-blob
-  [img [x y] id type colors tol]
-  (let [test (fn [xy]
-               (test-xy xy img colors tol))
-        mark (fn [[x y]]
-               (reset! (get-cell [x y]) id))
-        coords (scanline x y test mark [min-x max-x] [min-y max-y])
-        coords (dilate-blob coords [min-x max-x] [min-y max-y])
+(defn blob-from-coords
+  [coords id type]
+  (let [coords (dilate-blob coords [min-x max-x] [min-y max-y])
         [[x0 y0] [x1 y1]] (bounding-box coords)]
-    (when (seq coords)
+    (when (pos? (count coords))
       {:type type
        :id id
        :coords coords
@@ -105,19 +107,32 @@
                 (quot (+ y0 y1) 2)]
        })))
 
+(defn scan-blob
+  [[x y] id type]
+  (blob-from-coords (scanline-fill! classes (type-bit type) cells id x y
+                                    [min-x max-x] [min-y max-y])
+                    id type))
+
+(defn bbox-shape
+  "A blob's bounding box as a polygon."
+  [{:keys [x-range y-range]}]
+  (let [[x-lo x-hi] x-range
+        [y-lo y-hi] y-range]
+    {:shape :poly
+     :coords (list [x-hi y-lo]
+                   [x-lo y-lo]
+                   [x-lo y-hi]
+                   [x-hi y-hi])}))
+
 (defn shape-from-blob*
-  [{:keys [type coords x-range y-range mid-pt]}]
+  [{:keys [type coords x-range y-range mid-pt] :as blob}]
   (let [[x-lo x-hi] x-range
         [y-lo y-hi] y-range]
     (case type
       :ground (do
                 ;; update ground level, used for other objects
                 ;(swap! ground-level min y-lo)
-                {:shape :poly
-                 :coords (list [x-hi y-lo]
-                               [x-lo y-lo]
-                               [x-lo y-hi]
-                               [x-hi y-hi])})
+                (bbox-shape blob))
       :red-bird {:shape :circle
                  :radius (:radius-px (:red-bird bird-attrs))
                  :pos mid-pt}
@@ -141,6 +156,14 @@
   (try (shape-from-blob* m)
        (catch Exception e
          nil)))
+
+(defn fallback-shape
+  "Shape for a blob whose fitting did not finish in time. Types fitted
+   from the bounding box alone are done directly; others get the box."
+  [blob]
+  (case (:type blob)
+    (:ground :red-bird :blue-bird :yellow-bird :pig) (shape-from-blob blob)
+    (bbox-shape blob)))
   
 (defn deepCopyBI
   [^BufferedImage bi]
@@ -148,69 +171,124 @@
         raster (.copyData bi nil)]
     (BufferedImage. cm raster (.isAlphaPremultiplied cm) nil)))
 
-(defn identify-shapes
-  [^BufferedImage img]
-  (let [id-counter (atom 0)
-        ^BufferedImage class-img (deepCopyBI img)
-        ok-params (dissoc object-params :tap :trajectory :sky :ground)]
-    (when *debug*
-      (doseq [y (range min-y max-y)
-              x (range min-x max-x)]
-        (.setRGB class-img x y
-                 (-> (.getRGB class-img x y)
-                     (Color.)
-                     .darker
-                     .darker
-                     .getRGB)))
-      (reset! display-img class-img)
-      (repaint! @the-frame))
-    (reset-cells!)
+(def ^:dynamic *segmentation*
+  "How identify-shapes finds blobs. :floodfill seeds a fill at each
+   unclaimed seed-colored pixel in turn. :components labels every
+   connected component in one sweep (uglyboids.vision.components),
+   with the same blobs as the flood fill. :parallel gives the same
+   blobs again, but labels the frame in strips on *vision-threads*
+   threads."
+  :floodfill)
+
+(def ^:dynamic *vision-threads*
+  (.availableProcessors (Runtime/getRuntime)))
+
+(def vision-pool
+  "Fork-join pool with the given number of threads (one per size)."
+  (memoize (fn [n] (ForkJoinPool. (int n)))))
+
+(def shape-pool
+  "Work-stealing pool for shape fitting, kept apart from vision-pool.
+   Sized by *vision-threads* (one pool per size)."
+  (memoize (fn [n] (ForkJoinPool. (int n)))))
+
+(def ^:dynamic *shape-deadline-ms*
+  "Time allowed per frame for shape fitting to finish once segmentation
+   is done. Segmentation time depends only on the image size; fitting
+   depends on how cluttered the scene is, so this is what bounds it.
+   Blobs not fitted by then get fallback-shape."
+  1500)
+
+;; {:blobs :timed-out :ms} for the last frame's shape fitting
+(def fitting-stats (atom nil))
+
+(defn accept-blob
+  "Checks that a blob is within the allowed size range for its type.
+   If so, returns it with shape detection started as :geom."
+  [blob ^BufferedImage class-img]
+  (let [type (:type blob)
+        my-params (get object-params type)
+        my-colors (:colors my-params)
+        coords (:coords blob)
+        pxx (count coords)
+        [min-px max-px] (:size my-params)
+        [x-lo x-hi] (:x-range blob)
+        [y-lo y-hi] (:y-range blob)]
+    ;; check within allowed size range
+    (when (and (<= min-px pxx max-px)
+               (>= (- x-hi x-lo) 4)
+               (>= (- y-hi y-lo) 4)
+               (or (not= type :static-wood)
+                   (>= (- x-hi x-lo) 10)
+                   (>= (- y-hi y-lo) 10)))
+      (when *debug*
+        (let [seed-int (rgb-int (first my-colors))]
+          (doseq [[x y] coords]
+            (.setRGB class-img x y seed-int)))
+        (invoke-later (repaint! @the-frame))
+        (dbg "FOUND" type "(" (:id blob) "), of" pxx "px. "
+             "x-range" (:x-range blob)
+             "y-range" (:y-range blob)))
+      ;; detect shape, but farm the work off to another thread
+      (assoc blob
+        :geom (if *debug* ;; concurrency is hard to debug
+                (atom (shape-from-blob blob))
+                (let [^Callable task (fn [] (shape-from-blob blob))]
+                  (.submit ^ForkJoinPool (shape-pool *vision-threads*)
+                           task)))))))
+
+(defn await-shapes
+  "Waits for the shape fitting of each blob until deadline (in
+   System/nanoTime), then cancels whatever is left. Returns the blobs
+   with :geom as an atom; blobs that ran out of time are marked
+   :timed-out and get fallback-shape."
+  [blobs deadline]
+  (let [t0 (System/nanoTime)
+        out (mapv (fn [blob]
+                    (let [g (:geom blob)]
+                      (if (instance? Future g)
+                        (let [^Future f g
+                              wait (max 0 (- deadline (System/nanoTime)))
+                              geom (try (.get f wait TimeUnit/NANOSECONDS)
+                                        (catch TimeoutException e
+                                          (.cancel f true)
+                                          ::timed-out)
+                                        (catch CancellationException e
+                                          ::timed-out))]
+                          (if (= geom ::timed-out)
+                            (assoc blob
+                              :geom (atom (fallback-shape blob))
+                              :timed-out true)
+                            (assoc blob :geom (atom geom))))
+                        blob)))
+                  blobs)
+        stats {:blobs (count out)
+               :timed-out (count (filter :timed-out out))
+               :ms (/ (- (System/nanoTime) t0) 1e6)}]
+    (reset! fitting-stats stats)
+    (dbg "shape fitting:" stats)
+    out))
+
+(defn flood-fill-blobs
+  [ok-mask class-img]
+  (let [id-counter (atom 0)]
     ;; recursively build up 'blobs'
     (loop [pts (for [y (range min-y (inc max-y))
                      x (range min-x (inc max-x))] [x y])
            blobs []]
       (if (seq pts)
-        (let [[x y] (first pts)
-              cell (get-cell [x y])]
-          (if (nil? @cell)
-            (let [xy-rgb (r-g-b (.getRGB img x y))
-                  type (detect-type-from-color xy-rgb ok-params)]
+        (let [[x y] (first pts)]
+          (if (nil? (get-cell [x y]))
+            (let [type (seed-type (aget ^ints classes (xy-index px-width x y))
+                                  ok-mask)]
               (if (nil? type)
                 ;; no detected type here, go to next pixel
                 (recur (next pts) blobs)
                 ;; detected the seed color of an object
-                (let [my-params (get ok-params type)
-                      my-colors (:colors my-params)
-                      tol (:tolerance my-params)
-                      id (swap! id-counter inc)
-                      blob (scan-blob img [x y] id type my-colors tol)
-                      coords (:coords blob)
-                      pxx (count coords)
-                      [min-px max-px] (:size my-params)
-                      [x-lo x-hi] (:x-range blob)
-                      [y-lo y-hi] (:y-range blob)]
-                  ;; check within allowed size range
-                  (if (and (<= min-px pxx max-px)
-                           (>= (- x-hi x-lo) 4)
-                           (>= (- y-hi y-lo) 4)
-                           (or (not= type :static-wood)
-                               (>= (- x-hi x-lo) 10)
-                               (>= (- y-hi y-lo) 10)))
-                    (do
-                      (when *debug*
-                        (let [seed-int (rgb-int (first my-colors))]
-                          (doseq [[x y] coords]
-                            (.setRGB class-img x y seed-int)))
-                        (invoke-later (repaint! @the-frame))
-                        (dbg "FOUND" type "(" id "), of" pxx "px. "
-                             "x-range" (:x-range blob)
-                             "y-range" (:y-range blob)))
-                      ;; detect shape, but farm the work off to another thread
-                      (let [augmented-blob (assoc blob
-                                             :geom (if *debug* ;; concurrency is hard to debug
-                                                     (atom (shape-from-blob blob))
-                                                     (future (shape-from-blob blob))))]
-                        (recur (next pts) (conj blobs augmented-blob))))
+                (let [id (swap! id-counter inc)
+                      blob (accept-blob (scan-blob [x y] id type) class-img)]
+                  (if blob
+                    (recur (next pts) (conj blobs blob))
                     ;; out of size range, ignore
                     (recur (next pts) blobs)))))
             ;; cell already identified, skip
@@ -218,6 +296,178 @@
         ;; end of points, return:
         blobs))))
 
+(defn component-blobs
+  [ok-mask class-img & [first-id]]
+  (let [comps (label-components! classes cells ok-mask
+                                 [min-x max-x] [min-y max-y]
+                                 (or first-id 1))]
+    (vec (keep (fn [{:keys [coords id type runs shared]}]
+                 (when-let [blob (blob-from-coords coords id type)]
+                   (accept-blob (assoc blob :runs runs :shared shared)
+                                class-img)))
+               comps))))
+
+(defn parallel-component-blobs
+  [pixels ok-mask class-img]
+  (let [^ForkJoinPool pool (vision-pool *vision-threads*)
+        ;; more strips than threads, to even out the load
+        n-strips (* 2 *vision-threads*)
+        prepare! (fn [y0 y1]
+                   (classify-region! pixels classes px-width
+                                     [min-x max-x] [y0 y1]))
+        comps (label-components-parallel! pool n-strips prepare!
+                                          classes cells ok-mask
+                                          [min-x max-x] [min-y max-y] 1)
+        tasks (for [{:keys [coords id type runs shared]} comps]
+                (fn []
+                  (when-let [blob (blob-from-coords coords id type)]
+                    (assoc blob :runs runs :shared shared))))
+        blobs (map #(.get ^Future %)
+                   (.invokeAll pool ^java.util.Collection (vec tasks)))]
+    (vec (keep #(accept-blob % class-img)
+               (remove nil? blobs)))))
+
+;; ## incremental segmentation
+;;
+;; Between shots most of the screen does not change. A blob from the
+;; previous frame is still exactly a component of the new frame if no
+;; pixel in its bounding box has changed: the box is of the dilated
+;; blob, so it takes in every pixel the component could join through.
+;; That does not hold for :shared blobs, flood filled again where they
+;; touch another type, whose pixels depend on the fills around them.
+;; The other blobs are carried over with their fitted :geom. Only the
+;; changed tiles are classified again, and only the area around them
+;; and the dropped blobs is labelled, skipping carried-over pixels.
+
+(def ^:dynamic *incremental*
+  "When true and *segmentation* labels components (:components or
+   :parallel), identify-shapes reuses what it can of the previous
+   incremental frame, as above. The flood fill is never incremental,
+   so with :floodfill this has no effect."
+  false)
+
+(def ^:dynamic *max-dirty-fraction*
+  "Above this fraction of changed tiles, segment the whole frame."
+  0.5)
+
+(def tile-size 32)
+
+;; pixels and accepted blobs of the last incremental frame
+(def prev-pixels (int-array (* px-width px-height)))
+(def prev-blobs (atom nil))
+
+;; {:dirty-tiles :kept :new} for the last incremental frame
+(def incremental-stats (atom nil))
+
+(defn- first-run
+  "Row and x of a blob's first run, i.e. its raster order."
+  [blob]
+  (let [^ints r (:runs blob)]
+    [(aget r 0) (aget r 1)]))
+
+(defn- reclaim-blob!
+  "Claims the pixels of a carried-over blob under a new id."
+  [blob id]
+  (let [^ints r (:runs blob)]
+    (loop [i 0]
+      (when (< i (alength r))
+        (let [row (* (aget r i) px-width)]
+          (loop [x (aget r (+ i 1))]
+            (when (<= x (aget r (+ i 2)))
+              (claim! cells (+ row x) id)
+              (recur (inc x)))))
+        (recur (+ i 3))))
+    (assoc blob :id id)))
+
+(defn- span
+  "Smallest [[x0 x1] [y0 y1]] covering the given regions."
+  [regions]
+  (let [xs (map first regions)
+        ys (map second regions)]
+    [[(apply min (map first xs)) (apply max (map second xs))]
+     [(apply min (map first ys)) (apply max (map second ys))]]))
+
+(defn incremental-blobs
+  "Blobs of a frame given those of the previous one, or nil when too
+   much has changed (or there is no previous frame). Assumes the label
+   buffer has been reset."
+  [^ints pixels ok-mask class-img]
+  (when-let [prev (seq @prev-blobs)]
+    (let [tm (diff-tiles pixels prev-pixels px-width tile-size
+                         [min-x max-x] [min-y max-y])]
+      (when (<= (dirty-fraction tm) *max-dirty-fraction*)
+        (let [keep? (fn [b]
+                      (and (not (:timed-out b))
+                           (not (:shared b))
+                           (region-clean? tm (:x-range b) (:y-range b))))
+              dropped (remove keep? prev)
+              ;; renumber, so ids stay below the pixel count
+              kept (doall (map reclaim-blob! (filter keep? prev)
+                               (iterate inc 1)))
+              dirty (dirty-regions tm [min-x max-x] [min-y max-y])]
+          (doseq [[xr yr] dirty]
+            (classify-region! pixels classes px-width xr yr))
+          (let [changed (concat dirty (map (juxt :x-range :y-range) dropped))
+                comps (when (seq changed)
+                        (let [[xr yr] (span changed)]
+                          (label-components-around! classes cells ok-mask xr yr
+                                                    [min-x max-x] [min-y max-y]
+                                                    tile-size (inc (count kept)))))
+                new (vec (keep (fn [{:keys [coords id type runs shared]}]
+                                 (when-let [blob (blob-from-coords coords id type)]
+                                   (accept-blob (assoc blob :runs runs :shared shared)
+                                                class-img)))
+                               comps))]
+            (reset! incremental-stats {:dirty-tiles (dirty-count tm)
+                                       :kept (count kept)
+                                       :new (count new)})
+            (dbg "incremental:" @incremental-stats)
+            (vec (sort-by first-run (concat kept new)))))))))
+
+(defn identify-shapes
+  "Blobs of the objects in a screenshot. pixels, when given, are the
+   image's packed RGB pixels already extracted as a px-width*px-height
+   frame (see frame-pixels); img is then only needed when debugging."
+  ([^BufferedImage img]
+     (identify-shapes img (frame-pixels img pixel-buf px-width px-height)))
+  ([^BufferedImage img ^ints pixels]
+     (let [;; only drawn on when debugging
+           ^BufferedImage class-img (when *debug* (deepCopyBI img))
+           ok-params (dissoc object-params :tap :trajectory :sky :ground)
+           ok-mask (types-mask (keys ok-params))]
+       (when *debug*
+         (doseq [y (range min-y max-y)
+                 x (range min-x max-x)]
+           (.setRGB class-img x y
+                    (-> (.getRGB class-img x y)
+                        (Color.)
+                        .darker
+                        .darker
+                        .getRGB)))
+         (reset! display-img class-img)
+         (repaint! @the-frame))
+       (reset-cells!)
+       (let [mode *segmentation*
+             incremental? (and *incremental* (not= mode :floodfill))
+             blobs (or (when incremental?
+                         (incremental-blobs pixels ok-mask class-img))
+                       (if (= mode :parallel)
+                         (parallel-component-blobs pixels ok-mask class-img)
+                         (do
+                           (classify-region! pixels classes px-width
+                                             [min-x max-x] [min-y max-y])
+                           (case mode
+                             :floodfill (flood-fill-blobs ok-mask class-img)
+                             :components (component-blobs ok-mask class-img)))))
+             blobs (await-shapes blobs (+ (System/nanoTime)
+                                          (* *shape-deadline-ms* 1000000)))]
+         (if incremental?
+           (do (System/arraycopy pixels 0 prev-pixels 0 (alength ^ints prev-pixels))
+               (reset! prev-blobs blobs))
+           ;; classes and labels no longer match prev-pixels
+           (reset! prev-blobs nil))
+         blobs))))
+
 (defn draw-shapes!
   [blobs col]
   (let [g (.getGraphics ^BufferedImage @display-img)
@@ -410,7 +660,8 @@
           (style :background :black))))
 
 (defn scene-from-image
-  [img]
+  "The scene in a screenshot; pixels as for identify-shapes."
+  [img & [pixels]]
   (when *debug*
     (reset! display-img img)
     (reset! the-frame
@@ -423,7 +674,9 @@
                        :on-close :dispose)
                 show!)))
   (println "scanning image for shapes...")
-  (let [blobs (identify-shapes img)]
+  (let [blobs (if pixels
+                (identify-shapes img pixels)
+                (identify-shapes img))]
     (when *debug*
       (println "drawing shapes...")
       (draw-shapes! blobs Color/WHITE))
@@ -440,6 +693,42 @@
   (let [img (ImageIO/read (File. img-file))]
     (scene-from-image img)))
 
+(defn image-from-bytes
+  "Decodes an encoded image (e.g. PNG bytes of a screenshot)."
+  ^BufferedImage [^bytes bs]
+  (ImageIO/read (ByteArrayInputStream. bs)))
+
+(defn scene-from-image-bytes
+  [^bytes bs]
+  (scene-from-image (image-from-bytes bs)))
+
+(defn raw-pixels
+  "The pixels of a raw screenshot (ab.framework.other.RawScreenShot)
+   written into pixel-buf at their place in the frame, with no image
+   decoded. The shot should cover the region vision looks at: min-x to
+   max-x and min-y to max-y."
+  ^ints [^RawScreenShot shot]
+  (rgb-into-pixels! (.getRgb shot) pixel-buf px-width
+                    [(.getX shot) (.getY shot)]
+                    [(.getWidth shot) (.getHeight shot)]))
+
+(defn image-from-pixels
+  "An image of packed RGB pixels, for debugging."
+  ^BufferedImage [^ints pixels]
+  (let [img (BufferedImage. px-width px-height BufferedImage/TYPE_INT_RGB)]
+    (.setRGB img 0 0 px-width px-height pixels 0 px-width)
+    img))
+
+(defn scene-from-pixels
+  "The scene in a frame of packed RGB pixels, e.g. from raw-pixels."
+  [^ints pixels]
+  (scene-from-image (when *debug* (image-from-pixels pixels)) pixels))
+
+(defn scene-from-raw
+  "The scene in a raw screenshot."
+  [^RawScreenShot shot]
+  (scene-from-pixels (raw-pixels shot)))
+
 (defn -main
   [screenshot & args]
   (binding [*debug* true]
@@ -0,0 +1,283 @@
+(ns uglyboids.vision.classify
+  "Per-pixel color classification against object-params, by table
+   lookup on the raw pixel data of a screenshot."
+  (:use [uglyboids.vision.params :only [object-params]])
+  (:import (java.awt.image BufferedImage DataBufferInt DataBufferByte)
+           (java.util Arrays)))
+
+;; Each object type gets one bit, in the order of object-params (which
+;; is also the priority order for detecting a type from its seed color).
+
+(def type-order (vec (keys object-params)))
+
+(def type-bit
+  (zipmap type-order (map #(bit-shift-left 1 %) (range))))
+
+(defn types-mask
+  "Bit mask covering the given object types."
+  [types]
+  (reduce bit-or 0 (map type-bit types)))
+
+;; The RGB cube is quantized to 5 bits per channel, so each table cell
+;; covers an 8x8x8 block of colors. A type is "sure" in a cell when
+;; every color in the block is within tolerance of one of its colors,
+;; and "maybe" when only some are. Only the "maybe but not sure" bits
+;; need an exact distance test, and those are confined to the thin
+;; shells at the tolerance boundaries.
+
+(def ^:const qshift 3)
+(def ^:const qsize 32)
+
+(defn- cell-index
+  ^long [^long rgb]
+  (bit-or (bit-shift-left (bit-and (bit-shift-right rgb 19) 0x1F) 10)
+          (bit-shift-left (bit-and (bit-shift-right rgb 11) 0x1F) 5)
+          (bit-and (bit-shift-right rgb 3) 0x1F)))
+
+(defn- dist2-range
+  "Minimum and maximum squared distance from value v to the 8-wide
+   channel block starting at lo."
+  [v lo]
+  (let [hi (+ lo 7)
+        dmin (cond (< v lo) (- lo v) (> v hi) (- v hi) :else 0)
+        dmax (max (Math/abs (long (- v lo))) (Math/abs (long (- v hi))))]
+    [(* dmin dmin) (* dmax dmax)]))
+
+(defn- color-tables
+  "Returns [sure maybe] int arrays over the quantized cube, for the
+   given seq of [type-bit colors tol]."
+  [specs]
+  (let [sure (int-array (* qsize qsize qsize))
+        maybe (int-array (* qsize qsize qsize))]
+    (doseq [[bit colors tol] specs
+            [r g b] colors
+            :let [tol2 (* tol tol)]
+            qr (range qsize)
+            :let [[r-lo r-hi] (dist2-range r (bit-shift-left qr qshift))]
+            :when (<= r-lo tol2)
+            qg (range qsize)
+            :let [[g-lo g-hi] (dist2-range g (bit-shift-left qg qshift))]
+            :when (<= (+ r-lo g-lo) tol2)
+            qb (range qsize)
+            :let [[b-lo b-hi] (dist2-range b (bit-shift-left qb qshift))]
+            :when (<= (+ r-lo g-lo b-lo) tol2)]
+      (let [i (+ (* qr qsize qsize) (* qg qsize) qb)]
+        (aset maybe i (int (bit-or (aget maybe i) bit)))
+        (when (<= (+ r-hi g-hi b-hi) tol2)
+          (aset sure i (int (bit-or (aget sure i) bit))))))
+    [sure maybe]))
+
+(defn- exact-specs
+  "Per type index: a flat int array [r g b r g b ...] and tol^2."
+  [colors-fn]
+  (object-array
+   (for [t type-order
+         :let [p (get object-params t)
+               tol (:tolerance p)]]
+     [(int-array (apply concat (colors-fn p)))
+      (long (* tol tol))])))
+
+(deftype ColorTable [^longs cells ^objects member-exact ^objects seed-exact])
+
+(defn color-table
+  "Builds a lookup table from object-params for membership of each type
+   (any of its colors) and for its seed color (the first). Each cell
+   packs four 16-bit masks: member sure, member unsure, seed sure, seed
+   unsure."
+  []
+  (let [specs (fn [colors-fn]
+                (for [t type-order
+                      :let [p (get object-params t)]]
+                  [(type-bit t) (colors-fn p) (:tolerance p)]))
+        seed-colors (fn [p] (take 1 (:colors p)))
+        [^ints ms ^ints mm] (color-tables (specs :colors))
+        [^ints ss ^ints sm] (color-tables (specs seed-colors))
+        cells (long-array (alength ms))]
+    (dotimes [i (alength ms)]
+      (aset cells i (bit-or (aget ms i)
+                            (bit-shift-left (bit-and-not (aget mm i) (aget ms i)) 16)
+                            (bit-shift-left (long (aget ss i)) 32)
+                            (bit-shift-left (bit-and-not (aget sm i) (aget ss i)) 48))))
+    (ColorTable. cells (exact-specs :colors) (exact-specs seed-colors))))
+
+(def the-table (delay (color-table)))
+
+(defn- exact-mask
+  "Refine the uncertain bits of a table lookup by exact distances."
+  ^long [^objects exact ^long bits ^long rgb]
+  (let [r (bit-and (bit-shift-right rgb 16) 0xFF)
+        g (bit-and (bit-shift-right rgb 8) 0xFF)
+        b (bit-and rgb 0xFF)]
+    (loop [bits bits
+           mask 0]
+      (if (zero? bits)
+        mask
+        (let [i (Long/numberOfTrailingZeros bits)
+              spec (aget exact i)
+              ^ints cs (nth spec 0)
+              tol2 (long (nth spec 1))
+              n (alength cs)
+              hit? (loop [j 0]
+                     (if (< j n)
+                       (let [dr (- r (aget cs j))
+                             dg (- g (aget cs (+ j 1)))
+                             db (- b (aget cs (+ j 2)))]
+                         (if (<= (+ (* dr dr) (* dg dg) (* db db)) tol2)
+                           true
+                           (recur (+ j 3))))
+                       false))]
+          (recur (bit-and bits (dec bits))
+                 (if hit? (bit-or mask (bit-shift-left 1 i)) mask)))))))
+
+(defn pixel-class
+  "Classifies one packed RGB pixel. Returns the member-type mask in the
+   low 16 bits and the seed-type mask in the high 16 bits."
+  ^long [^ColorTable table ^long rgb]
+  (let [cell (aget ^longs (.cells table) (cell-index rgb))
+        m-sure (bit-and cell 0xFFFF)
+        m-unsure (bit-and (bit-shift-right cell 16) 0xFFFF)
+        s-sure (bit-and (bit-shift-right cell 32) 0xFFFF)
+        s-unsure (bit-and (bit-shift-right cell 48) 0xFFFF)
+        member (if (zero? m-unsure)
+                 m-sure
+                 (bit-or m-sure (exact-mask (.member-exact table) m-unsure rgb)))
+        seed (if (zero? s-unsure)
+               s-sure
+               (bit-or s-sure (exact-mask (.seed-exact table) s-unsure rgb)))]
+    (bit-or member (bit-shift-left seed 16))))
+
+(defn member?
+  "Does a pixel class include the type bit?"
+  [^long cls ^long bit]
+  (not (zero? (bit-and cls bit))))
+
+(defn seed-type
+  "The first type (in object-params order) among those in ok-mask
+   whose seed color matches a pixel class, or nil."
+  [^long cls ^long ok-mask]
+  (let [seeds (bit-and (bit-shift-right cls 16) ok-mask)]
+    (when-not (zero? seeds)
+      (nth type-order (Long/numberOfTrailingZeros seeds)))))
+
+(defn image-pixels
+  "Packed RGB pixels of an image, row-major, as an int array. Reads the
+   raster's backing array directly for the common image types; the
+   result is the image's own array for INT_RGB/ARGB images, otherwise
+   it is written into buf (when large enough) and returned."
+  ^ints [^BufferedImage img buf]
+  (let [w (.getWidth img)
+        h (.getHeight img)
+        n (* w h)
+        ^ints out (if (and buf (>= (alength ^ints buf) n)) buf (int-array n))
+        raster (.getRaster img)
+        dbuf (.getDataBuffer raster)
+        simple? (and (nil? (.getParent raster))
+                     (zero? (.getSampleModelTranslateX raster))
+                     (zero? (.getSampleModelTranslateY raster)))
+        type (.getType img)]
+    (cond
+     (and simple?
+          (instance? DataBufferInt dbuf)
+          (or (= type BufferedImage/TYPE_INT_RGB)
+              (= type BufferedImage/TYPE_INT_ARGB))
+          (= n (alength (.getData ^DataBufferInt dbuf))))
+     (.getData ^DataBufferInt dbuf)
+     (and simple?
+          (instance? DataBufferByte dbuf)
+          (or (= type BufferedImage/TYPE_3BYTE_BGR)
+              (= type BufferedImage/TYPE_4BYTE_ABGR))
+          (= (* n (if (= type BufferedImage/TYPE_3BYTE_BGR) 3 4))
+             (alength (.getData ^DataBufferByte dbuf))))
+     (let [^bytes px (.getData ^DataBufferByte dbuf)
+           stride (if (= type BufferedImage/TYPE_3BYTE_BGR) 3 4)
+           off (- stride 3)]
+       (loop [i 0 j off]
+         (when (< i n)
+           (aset out i (unchecked-int
+                        (bit-or (bit-shift-left (bit-and (aget px (+ j 2)) 0xFF) 16)
+                                (bit-shift-left (bit-and (aget px (+ j 1)) 0xFF) 8)
+                                (bit-and (aget px j) 0xFF))))
+           (recur (inc i) (+ j stride))))
+       out)
+     :else
+     (.getRGB img 0 0 w h out 0 w))))
+
+(defn frame-pixels
+  "Packed RGB pixels of an image laid out as a frame of the given width
+   and height, which is what image-pixels gives when the image is that
+   size. Otherwise the image is cropped to the frame and copied in with
+   the frame's row stride, into buf when large enough, and any part of
+   the frame it does not cover is black."
+  ^ints [^BufferedImage img buf width height]
+  (let [width (long width)
+        height (long height)
+        w (.getWidth img)
+        h (.getHeight img)]
+    (if (and (== w width) (== h height))
+      (image-pixels img buf)
+      (let [n (* width height)
+            ^ints out (if (and buf (>= (alength ^ints buf) n)) buf (int-array n))]
+        (Arrays/fill out 0 (int n) 0)
+        (when (and (pos? w) (pos? h))
+          (.getRGB img 0 0 (int (min w width)) (int (min h height))
+                   out 0 (int width)))
+        out))))
+
+(defn rgb-into-pixels!
+  "Writes a w*h rectangle of red, green, blue bytes (as sent in a raw
+   screenshot) into out, packed RGB and row-major with the given width,
+   at the rectangle's place in the whole frame. The rectangle is
+   clipped to the frame, and to the rows rgb holds. Pixels outside the
+   rectangle are left as they were. Returns out."
+  ^ints [^bytes rgb ^ints out width [x0 y0] [w h]]
+  (let [width (long width)
+        x0 (long x0)
+        y0 (long y0)
+        w (long w)
+        i0 (long (max 0 (- x0)))
+        i1 (long (min w (- width x0)))
+        r0 (long (max 0 (- y0)))
+        r1 (long (min (long h)
+                      (- (quot (alength out) width) y0)
+                      (if (pos? w) (quot (alength rgb) (* 3 w)) 0)))]
+    (loop [r r0]
+      (when (< r r1)
+        (let [row (+ (* (+ y0 r) width) x0)]
+          (loop [i i0 j (* 3 (+ (* r w) i0))]
+            (when (< i i1)
+              (aset out (+ row i)
+                    (unchecked-int
+                     (bit-or (bit-shift-left (bit-and (aget rgb j) 0xFF) 16)
+                             (bit-shift-left (bit-and (aget rgb (+ j 1)) 0xFF) 8)
+                             (bit-and (aget rgb (+ j 2)) 0xFF))))
+              (recur (inc i) (+ j 3))))
+          (recur (inc r)))))
+    out))
+
+(defn classify-region!
+  "Classifies pixels (packed RGB, row-major with the given width) in
+   the inclusive region, writing pixel classes into the same positions
+   of out."
+  [^ints pixels ^ints out width [x0 x1] [y0 y1]]
+  (let [^ColorTable table @the-table
+        width (long width)
+        x0 (long x0)
+        x1 (long x1)
+        y1 (long y1)]
+    (loop [y (long y0)]
+      (when (<= y y1)
+        (let [row (* y width)]
+          ;; neighbouring pixels are very often the same color
+          (loop [x x0
+                 prev-rgb Long/MIN_VALUE
+                 prev-cls 0]
+            (when (<= x x1)
+              (let [i (+ row x)
+                    rgb (long (aget pixels i))
+                    cls (if (== rgb prev-rgb)
+                          prev-cls
+                          (pixel-class table rgb))]
+                (aset out i (unchecked-int cls))
+                (recur (inc x) rgb cls)))))
+        (recur (inc y))))
+    out))
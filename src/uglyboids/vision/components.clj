@@ -0,0 +1,564 @@
+(ns uglyboids.vision.components
+  "Connected-component labelling of a classified frame in one linear
+   sweep, as an alternative to seeding a flood fill at each unclaimed
+   pixel. Works on horizontal runs of same-typed pixels, joined with
+   union-find where runs on adjacent rows overlap (4-connectivity, as
+   in the flood fill). Gives the same blobs as the flood fill: where a
+   pixel's color is accepted by more than one type, which blob it goes
+   to depends on which fill reaches it first, so components touching
+   along such pixels are flood filled again, in the same order as
+   uglyboids.vision/flood-fill-blobs would."
+  (:use uglyboids.vision.labels
+        [uglyboids.vision.classify :only [type-order]]
+        [uglyboids.vision.floodfill :only [int-buffer packed-coords
+                                           scanline-fill!]])
+  (:import (uglyboids.vision.floodfill IntBuffer PackedCoords)
+           (java.util Arrays)
+           (java.util.concurrent ForkJoinPool)))
+
+(defn pixel-type-index
+  "Index (in object-params order) of the one type a pixel is labelled
+   with, considering only types in ok-mask: the first type whose seed
+   color matches, otherwise the first type with any matching color.
+   Bit 8 is set when it was a seed color match. Returns -1 for none."
+  ^long [^long cls ^long ok-mask]
+  (let [seeds (bit-and (bit-shift-right cls 16) ok-mask)
+        members (bit-and cls ok-mask)]
+    (cond
+     (not (zero? seeds)) (bit-or (Long/numberOfTrailingZeros seeds) 0x100)
+     (not (zero? members)) (Long/numberOfTrailingZeros members)
+     :else -1)))
+
+;; Runs are kept in parallel int buffers: row, first x, last x, type
+;; index, seed flag, and union-find parent.
+
+(deftype Runs [^IntBuffer ys ^IntBuffer x0s ^IntBuffer x1s
+               ^IntBuffer types ^IntBuffer seeds ^IntBuffer parents])
+
+(defn runs
+  []
+  (Runs. (int-buffer) (int-buffer) (int-buffer)
+         (int-buffer) (int-buffer) (int-buffer)))
+
+(defn find-root
+  ^long [^IntBuffer parents ^long i]
+  (loop [i i]
+    (let [p (.get parents i)]
+      (if (== p i)
+        i
+        (let [gp (.get parents p)]
+          ;; path halving
+          (.set parents i gp)
+          (recur gp))))))
+
+(defn union!
+  [^IntBuffer parents ^long a ^long b]
+  (let [ra (find-root parents a)
+        rb (find-root parents b)]
+    ;; keep the earlier run as root, so roots follow raster order
+    (cond
+     (< ra rb) (.set parents rb ra)
+     (< rb ra) (.set parents ra rb))))
+
+(defn scan-row-runs!
+  "Appends the runs of row y to rs. Returns the number of runs added."
+  [^Runs rs ^ints classes width ok-mask y [min-x max-x]]
+  (let [width (long width)
+        ok-mask (long ok-mask)
+        y (long y)
+        min-x (long min-x)
+        max-x (long max-x)
+        row (* y width)
+        ^IntBuffer ys (.ys rs)
+        ^IntBuffer x0s (.x0s rs)
+        ^IntBuffer x1s (.x1s rs)
+        ^IntBuffer types (.types rs)
+        ^IntBuffer seeds (.seeds rs)
+        ^IntBuffer parents (.parents rs)
+        start (.size ys)]
+    (loop [x min-x
+           run-x0 -1
+           run-t -1
+           run-seed 0]
+      (let [t (if (<= x max-x)
+                (pixel-type-index (aget classes (+ row x)) ok-mask)
+                -1)
+            ti (if (neg? t) -1 (bit-and t 0xFF))
+            seed (if (neg? t) 0 (bit-shift-right t 8))]
+        ;; close the current run when the type changes
+        (when (and (>= run-t 0) (not= ti run-t))
+          (.add ys y)
+          (.add x0s run-x0)
+          (.add x1s (dec x))
+          (.add types run-t)
+          (.add seeds run-seed)
+          (.add parents (.size parents)))
+        (when (<= x max-x)
+          (if (== ti run-t)
+            (recur (inc x) run-x0 run-t (bit-or run-seed seed))
+            (recur (inc x) x ti seed)))))
+    (- (.size ys) start)))
+
+(defn join-rows!
+  "Unions runs of the same type that overlap between the previous row
+   (runs p0 to p1-1) and the current row (runs c0 to c1-1)."
+  [^Runs rs p0 p1 c0 c1]
+  (let [p1 (long p1)
+        c1 (long c1)
+        ^IntBuffer x0s (.x0s rs)
+        ^IntBuffer x1s (.x1s rs)
+        ^IntBuffer types (.types rs)
+        ^IntBuffer parents (.parents rs)]
+    (loop [i (long p0)
+           j (long c0)]
+      (when (and (< i p1) (< j c1))
+        (let [pa (.get x0s i), pb (.get x1s i)
+              ca (.get x0s j), cb (.get x1s j)]
+          (when (and (<= pa cb) (<= ca pb)
+                     (== (.get types i) (.get types j)))
+            (union! parents i j))
+          ;; advance whichever run ends first
+          (if (< pb cb)
+            (recur (inc i) j)
+            (recur i (inc j))))))))
+
+(defn label-runs
+  "First pass: runs of every row in the region, joined across rows."
+  [^ints classes width ok-mask [min-x max-x] [min-y max-y]]
+  (let [rs (runs)]
+    (loop [y (long min-y)
+           p0 0
+           p1 0]
+      (when (<= y (long max-y))
+        (let [n (long (scan-row-runs! rs classes width ok-mask y [min-x max-x]))
+              c0 p1
+              c1 (+ p1 n)]
+          (join-rows! rs p0 p1 c0 c1)
+          (recur (inc y) c0 c1))))
+    rs))
+
+;; ## pixels of more than one type
+;;
+;; A flood fill of one type can run on through pixels that another
+;; type's colors also match, so where two components of different
+;; types touch along a pair of pixels with a type in common, which of
+;; them gets those pixels depends on the order the fills are started
+;; in. Such components are not taken as they are, but flood filled
+;; again in raster order. Fills only pass between touching pixels with
+;; a type in common, so the other components are unaffected.
+
+(defn- touching?
+  "Do pixels i and j both match some type in ok-mask?"
+  [^ints classes ^long ok-mask ^long i ^long j]
+  (not (zero? (bit-and (bit-and (aget classes i) (aget classes j)) ok-mask))))
+
+(defn shared-runs
+  "Flags the runs that touch a run of another type along a pair of
+   pixels with a type in common. Returns a boolean array by run."
+  [^Runs rs ^ints classes width ok-mask]
+  (let [width (long width)
+        ok-mask (long ok-mask)
+        ^IntBuffer ys (.ys rs)
+        ^IntBuffer x0s (.x0s rs)
+        ^IntBuffer x1s (.x1s rs)
+        ^IntBuffer types (.types rs)
+        n (.size ys)
+        shared (boolean-array n)
+        mark! (fn [^long i ^long j]
+                (aset shared i true)
+                (aset shared j true))]
+    (loop [p0 0
+           p1 0
+           c0 0]
+      (when (< c0 n)
+        (let [y (.get ys c0)
+              row (* y width)
+              c1 (long (loop [c (inc c0)]
+                         (if (and (< c n) (== y (.get ys c)))
+                           (recur (inc c))
+                           c)))]
+          ;; neighbouring runs on this row are always of different types
+          (loop [j c0]
+            (when (< (inc j) c1)
+              (let [b (.get x1s j)]
+                (when (and (== (inc b) (.get x0s (inc j)))
+                           (touching? classes ok-mask (+ row b) (+ row b 1)))
+                  (mark! j (inc j))))
+              (recur (inc j))))
+          ;; overlapping runs of different types on the row above
+          (when (and (< p0 p1) (== (.get ys p0) (dec y)))
+            (loop [i p0
+                   j c0]
+              (when (and (< i p1) (< j c1))
+                (let [pa (.get x0s i), pb (.get x1s i)
+                      ca (.get x0s j), cb (.get x1s j)]
+                  (when (and (<= pa cb) (<= ca pb)
+                             (not= (.get types i) (.get types j)))
+                    (let [to (long (min pb cb))]
+                      (loop [x (long (max pa ca))]
+                        (when (<= x to)
+                          (if (touching? classes ok-mask (- (+ row x) width) (+ row x))
+                            (mark! i j)
+                            (recur (inc x)))))))
+                  (if (< pb cb)
+                    (recur (inc i) j)
+                    (recur i (inc j)))))))
+          (recur c0 c1 c1))))
+    shared))
+
+(defn- index-runs
+  "Row, first x, last x triples of the runs in sorted pixel indices."
+  ^ints [^ints idxs width]
+  (let [width (long width)
+        n (alength idxs)
+        ^IntBuffer out (int-buffer)]
+    (loop [k 0]
+      (when (< k n)
+        (let [i (aget idxs k)
+              y (quot i width)
+              k1 (long (loop [k1 (inc k)]
+                         (if (and (< k1 n)
+                                  (== (aget idxs k1) (+ i (- k1 k)))
+                                  (== y (quot (aget idxs k1) width)))
+                           (recur (inc k1))
+                           k1)))]
+          (.add out y)
+          (.add out (rem i width))
+          (.add out (+ (rem i width) (- k1 k 1)))
+          (recur k1))))
+    (.toArray out)))
+
+(defn- refill-runs!
+  "Flood fills the pixels of the runs picked by (refill? i), as the
+   flood fill over the whole frame would: in raster order, from each
+   unclaimed seed-colored pixel, over the unclaimed pixels of its seed
+   type within the region. Claims each fill's pixels, assigning ids
+   from first-id. Returns the fills as collect-components does."
+  [^Runs rs refill? ^ints classes labels ok-mask [min-x max-x] [min-y max-y]
+   first-id]
+  (let [^uglyboids.vision.labels.LabelBuffer labels labels
+        width (.width labels)
+        ok-mask (long ok-mask)
+        ^IntBuffer ys (.ys rs)
+        ^IntBuffer x0s (.x0s rs)
+        ^IntBuffer x1s (.x1s rs)
+        n-runs (.size ys)]
+    (loop [i 0
+           id (long first-id)
+           comps (transient [])]
+      (if (< i n-runs)
+        (if (refill? i)
+          (let [row (* (.get ys i) width)
+                x1 (.get x1s i)
+                [id comps]
+                (loop [x (.get x0s i)
+                       id id
+                       comps comps]
+                  (if (<= x x1)
+                    (let [p (+ row x)
+                          t (pixel-type-index (aget classes p) ok-mask)]
+                      (if (and (zero? (owner labels p))
+                               (>= t 0)
+                               (not (zero? (bit-and t 0x100))))
+                        (let [type-i (bit-and t 0xFF)
+                              ^PackedCoords pc (scanline-fill!
+                                                classes (bit-shift-left 1 type-i)
+                                                labels id x (.get ys i)
+                                                [min-x max-x] [min-y max-y])
+                              ^ints ks (.idxs pc)]
+                          ;; in raster order, like the pixels of a component
+                          (Arrays/sort ks)
+                          (recur (inc x) (inc id)
+                                 (conj! comps {:type (nth type-order type-i)
+                                               :id id
+                                               :coords (packed-coords ks (alength ks) width)
+                                               :runs (index-runs ks width)
+                                               :shared true})))
+                        (recur (inc x) id comps)))
+                    [id comps]))]
+            (recur (inc i) (long id) comps))
+          (recur (inc i) id comps))
+        (persistent! comps)))))
+
+(defn- first-index
+  "Pixel index of a component's first run."
+  ^long [comp width]
+  (let [^ints r (:runs comp)]
+    (+ (* (aget r 0) (long width)) (aget r 1))))
+
+(defn collect-components
+  "Second pass: groups runs by root into components, in raster order
+   of their first run. Components with no seed-colored pixel are
+   dropped, as a flood fill would never have started from them, and so
+   are components already claimed in the label buffer (by blobs carried
+   over from an earlier frame). Components touching one of another
+   type along pixels both accept are flood filled again within the
+   region instead (see shared-runs). Claims the pixels of each kept component
+   in the label buffer, assigning ids from first-id. Returns a vector
+   of maps with keys :type :id :coords (PackedCoords), :runs (int
+   array of row, first x, last x triples) and :shared (whether it was
+   flood filled), in raster order of their first pixel."
+  [^Runs rs ^ints classes labels ok-mask region-x region-y first-id]
+  (let [^uglyboids.vision.labels.LabelBuffer labels labels
+        width (.width labels)
+        ^booleans shared (shared-runs rs classes width ok-mask)
+        ^IntBuffer ys (.ys rs)
+        ^IntBuffer x0s (.x0s rs)
+        ^IntBuffer x1s (.x1s rs)
+        ^IntBuffer types (.types rs)
+        ^IntBuffer seeds (.seeds rs)
+        ^IntBuffer parents (.parents rs)
+        n-runs (.size parents)
+        ;; component index of each root run, -1 if not yet seen
+        comp-of (int-array n-runs -1)
+        ^IntBuffer comp-root (int-buffer)
+        ^IntBuffer comp-px (int-buffer)
+        ^IntBuffer comp-nruns (int-buffer)
+        ^IntBuffer comp-seed (int-buffer)
+        ^IntBuffer comp-shared (int-buffer)]
+    ;; resolve roots and tally pixels and runs per component
+    (dotimes [i n-runs]
+      (let [r (find-root parents i)
+            k (let [k (long (aget comp-of r))]
+                (if (neg? k)
+                  (let [k (.size comp-root)
+                        first-px (+ (* (.get ys r) width) (.get x0s r))]
+                    (aset comp-of r k)
+                    (.add comp-root r)
+                    (.add comp-px 0)
+                    (.add comp-nruns 0)
+                    ;; -1 marks an already claimed component
+                    (.add comp-seed (if (pos? (owner labels first-px)) -1 0))
+                    (.add comp-shared 0)
+                    k)
+                  k))
+            len (inc (- (.get x1s i) (.get x0s i)))]
+        (aset comp-of i k)
+        (.set comp-px k (+ (.get comp-px k) len))
+        (.set comp-nruns k (inc (.get comp-nruns k)))
+        (when (and (pos? (.get seeds i))
+                   (zero? (.get comp-seed k)))
+          (.set comp-seed k 1))
+        (when (aget shared i)
+          (.set comp-shared k 1))))
+    ;; gather pixel indices and runs of each component
+    (let [n-comps (.size comp-root)
+          idxs (object-array n-comps)
+          cruns (object-array n-comps)
+          px-fill (int-array n-comps)
+          run-fill (int-array n-comps)]
+      (dotimes [k n-comps]
+        (when (and (pos? (.get comp-seed k))
+                   (zero? (.get comp-shared k)))
+          (aset idxs k (int-array (.get comp-px k)))
+          (aset cruns k (int-array (* 3 (.get comp-nruns k))))))
+      (dotimes [i n-runs]
+        (let [k (aget comp-of i)]
+          (when-let [^ints ks (aget idxs k)]
+            (let [y (.get ys i)
+                  x0 (.get x0s i)
+                  x1 (.get x1s i)
+                  ^ints rk (aget cruns k)
+                  rf (aget run-fill k)]
+              (aset rk rf y)
+              (aset rk (+ rf 1) x0)
+              (aset rk (+ rf 2) x1)
+              (aset run-fill k (+ rf 3))
+              (loop [x x0
+                     f (aget px-fill k)]
+                (if (<= x x1)
+                  (do (aset ks f (+ (* y width) x))
+                      (recur (inc x) (inc f)))
+                  (aset px-fill k f)))))))
+      (loop [k 0
+             id (long first-id)
+             comps (transient [])]
+        (if (< k n-comps)
+          (if-let [^ints ks (aget idxs k)]
+            (let [type-i (.get types (.get comp-root k))]
+              (dotimes [f (alength ks)]
+                (claim! labels (aget ks f) id))
+              (recur (inc k) (inc id)
+                     (conj! comps {:type (nth type-order type-i)
+                                   :id id
+                                   :coords (packed-coords ks (alength ks) width)
+                                   :runs (aget cruns k)
+                                   :shared false})))
+            (recur (inc k) id comps))
+          (let [refill? (fn [i]
+                          (let [k (aget comp-of i)]
+                            (and (pos? (.get comp-shared k))
+                                 (>= (.get comp-seed k) 0))))
+                comps (persistent! comps)
+                fills (refill-runs! rs refill? classes labels ok-mask
+                                    region-x region-y id)]
+            (if (seq fills)
+              (vec (sort-by #(first-index % width) (concat comps fills)))
+              comps)))))))
+
+(defn label-components!
+  "Labels all components of the types in ok-mask within the region of
+   the classified frame, in one sweep over the pixels."
+  [^ints classes labels ok-mask [min-x max-x] [min-y max-y] first-id]
+  (let [rs (label-runs classes (.width ^uglyboids.vision.labels.LabelBuffer labels)
+                       ok-mask [min-x max-x] [min-y max-y])]
+    (collect-components rs classes labels ok-mask [min-x max-x] [min-y max-y]
+                        first-id)))
+
+;; ## labelling part of a frame
+;;
+;; Used when only part of a frame has changed. Labelling a sub-region
+;; gives the true components as long as no fill could cross its edge;
+;; if one could, the region is grown on that side and labelled again.
+
+(defn- touching-unclaimed?
+  "Is the pixel at x y unclaimed, within the full region, and sharing
+   a type with pixel i?"
+  [^ints classes labels ok-mask i x y [min-x max-x] [min-y max-y]]
+  (let [^uglyboids.vision.labels.LabelBuffer labels labels
+        x (long x)
+        y (long y)]
+    (and (<= (long min-x) x (long max-x))
+         (<= (long min-y) y (long max-y))
+         (let [j (+ (* y (.width labels)) x)]
+           (and (touching? classes ok-mask i j)
+                (zero? (owner labels j)))))))
+
+(defn region-leaks
+  "Which sides of the region a fill could cross, as a vector of
+   booleans [left right top bottom]: a pixel of a run on the edge has
+   an unclaimed pixel just outside, within the full region, with a
+   type in common."
+  [^Runs rs ^ints classes labels ok-mask [x0 x1] [y0 y1] full-x full-y]
+  (let [^uglyboids.vision.labels.LabelBuffer labels labels
+        width (.width labels)
+        ^IntBuffer ys (.ys rs)
+        ^IntBuffer x0s (.x0s rs)
+        ^IntBuffer x1s (.x1s rs)
+        x0 (long x0), x1 (long x1), y0 (long y0), y1 (long y1)
+        out? (fn [x y x* y*]
+               (touching-unclaimed? classes labels ok-mask
+                                    (xy-index width x y) x* y*
+                                    full-x full-y))
+        any-out? (fn [a b y y*]
+                   (some #(out? % y % y*) (range a (inc b))))]
+    (loop [i 0
+           left false, right false, top false, bottom false]
+      (if (< i (.size ys))
+        (let [y (.get ys i)
+              a (.get x0s i)
+              b (.get x1s i)]
+          (recur (inc i)
+                 (or left (and (== a x0) (out? a y (dec a) y)))
+                 (or right (and (== b x1) (out? b y (inc b) y)))
+                 (or top (and (== y y0) (boolean (any-out? a b y (dec y)))))
+                 (or bottom (and (== y y1) (boolean (any-out? a b y (inc y)))))))
+        [left right top bottom]))))
+
+(defn label-components-around!
+  "As label-components!, but labels only the components that meet the
+   region [x0 x1] [y0 y1], growing it by step pixels on any side that
+   a fill could cross, within the full region."
+  [^ints classes labels ok-mask [x0 x1] [y0 y1] [min-x max-x] [min-y max-y]
+   step first-id]
+  (let [width (.width ^uglyboids.vision.labels.LabelBuffer labels)]
+    (loop [x0 x0, x1 x1, y0 y0, y1 y1]
+      (let [rs (label-runs classes width ok-mask [x0 x1] [y0 y1])
+            [left right top bottom] (region-leaks rs classes labels ok-mask
+                                                  [x0 x1] [y0 y1]
+                                                  [min-x max-x] [min-y max-y])]
+        (if (or left right top bottom)
+          (recur (if left (max min-x (- x0 step)) x0)
+                 (if right (min max-x (+ x1 step)) x1)
+                 (if top (max min-y (- y0 step)) y0)
+                 (if bottom (min max-y (+ y1 step)) y1))
+          (collect-components rs classes labels ok-mask
+                              [min-x max-x] [min-y max-y] first-id))))))
+
+;; ## parallel labelling in horizontal strips
+;;
+;; Each strip is classified and cut into joined runs on its own; the
+;; strips are then concatenated and runs on either side of each strip
+;; boundary are joined, exactly as for any other pair of rows.
+
+(defn strips
+  "Splits rows y0 to y1 into up to n strips, as [first last] rows."
+  [n y0 y1]
+  (let [rows (inc (- y1 y0))
+        n (max 1 (min n rows))]
+    (for [i (range n)]
+      [(+ y0 (quot (* i rows) n))
+       (+ y0 (dec (quot (* (inc i) rows) n)))])))
+
+(defn- row-range
+  "Index range [from to) of the runs on row y, searching from start
+   forwards (or from end backwards when from-end? is true)."
+  [^Runs rs y from-end?]
+  (let [^IntBuffer ys (.ys rs)
+        n (.size ys)
+        y (long y)]
+    (if from-end?
+      (loop [i n]
+        (if (and (pos? i) (== y (.get ys (dec i))))
+          (recur (dec i))
+          [i n]))
+      (loop [i 0]
+        (if (and (< i n) (== y (.get ys i)))
+          (recur (inc i))
+          [0 i])))))
+
+(defn merge-strips
+  "Concatenates the runs of consecutive strips, given as [y0 y1 runs],
+   into one Runs, joining runs across each strip boundary."
+  [strip-runs]
+  (let [^Runs rs (runs)
+        ^IntBuffer ys (.ys rs)
+        ^IntBuffer x0s (.x0s rs)
+        ^IntBuffer x1s (.x1s rs)
+        ^IntBuffer types (.types rs)
+        ^IntBuffer seeds (.seeds rs)
+        ^IntBuffer parents (.parents rs)]
+    (loop [more strip-runs
+           prev-last nil]
+      (if-let [[y0 y1 s] (first more)]
+        (let [^Runs s s
+              offset (.size ys)
+              ^IntBuffer s-ys (.ys s)
+              ^IntBuffer s-x0s (.x0s s)
+              ^IntBuffer s-x1s (.x1s s)
+              ^IntBuffer s-types (.types s)
+              ^IntBuffer s-seeds (.seeds s)
+              ^IntBuffer s-parents (.parents s)
+              n (.size s-parents)]
+          (dotimes [i n]
+            (.add ys (.get s-ys i))
+            (.add x0s (.get s-x0s i))
+            (.add x1s (.get s-x1s i))
+            (.add types (.get s-types i))
+            (.add seeds (.get s-seeds i))
+            (.add parents (+ offset (.get s-parents i))))
+          (let [[f0 f1] (row-range s y0 false)
+                [l0 l1] (row-range s y1 true)]
+            (when prev-last
+              (let [[p0 p1] prev-last]
+                (join-rows! rs p0 p1 (+ offset f0) (+ offset f1))))
+            (recur (next more) [(+ offset l0) (+ offset l1)])))
+        rs))))
+
+(defn label-components-parallel!
+  "As label-components!, but the region is split into n-strips
+   horizontal strips which are prepared and labelled as tasks on the
+   fork-join pool. (prepare! y0 y1) is called in each strip's task
+   before its runs are scanned, e.g. to classify those rows."
+  [^ForkJoinPool pool n-strips prepare! ^ints classes labels ok-mask
+   [min-x max-x] [min-y max-y] first-id]
+  (let [width (.width ^uglyboids.vision.labels.LabelBuffer labels)
+        tasks (for [[y0 y1] (strips n-strips min-y max-y)]
+                (fn []
+                  (prepare! y0 y1)
+                  [y0 y1 (label-runs classes width ok-mask
+                                     [min-x max-x] [y0 y1])]))
+        strip-runs (map #(.get ^java.util.concurrent.Future %)
+                        (.invokeAll pool ^java.util.Collection (vec tasks)))]
+    (collect-components (merge-strips strip-runs) classes labels ok-mask
+                        [min-x max-x] [min-y max-y] first-id)))
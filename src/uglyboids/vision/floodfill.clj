@@ -1,4 +1,5 @@
-(ns uglyboids.vision.floodfill)
+(ns uglyboids.vision.floodfill
+  (:use uglyboids.vision.labels))
 
 (defn scanline
   "Scanline Floodfill Algorithm. Adapted from
@@ -95,3 +96,159 @@
                                          x))
                         nextx (if (empty? skip-xs) (inc x) (last skip-xs))]
                     (recur nextx nextx)))))))))))
+
+;; ## primitive flood fill over packed pixel indices
+;;
+;; Pixels are addressed by a packed index y*width+x, so a fill needs
+;; no [x y] tuples: it works on an int stack, reads pixel classes from
+;; an int array and writes ownership straight into a label buffer.
+
+(definterface IIntBuffer
+  (^void add [^long v])
+  (^long get [^long i])
+  (^void set [^long i ^long v])
+  (^long removeLast [])
+  (^long size [])
+  (^void clear [])
+  (^ints toArray []))
+
+(deftype IntBuffer [^:unsynchronized-mutable ^ints arr
+                    ^:unsynchronized-mutable ^long n]
+  IIntBuffer
+  (add [_ v]
+    (when (== n (alength arr))
+      ;; at least 16, so that an empty buffer can grow too
+      (set! arr (java.util.Arrays/copyOf arr (int (max 16 (* 2 n))))))
+    (aset arr n (unchecked-int v))
+    (set! n (inc n)))
+  (get [_ i] (aget arr i))
+  (set [_ i v] (aset arr i (unchecked-int v)))
+  (removeLast [_]
+    (set! n (dec n))
+    (aget arr n))
+  (size [_] n)
+  (clear [_] (set! n 0))
+  (toArray [_] (java.util.Arrays/copyOf arr (int n))))
+
+(defn int-buffer
+  ([] (int-buffer 1024))
+  ([capacity] (IntBuffer. (int-array capacity) 0)))
+
+(deftype PackedCoords [^ints idxs ^long n ^long width
+                       ^long x-lo ^long x-hi ^long y-lo ^long y-hi]
+  clojure.lang.Counted
+  (count [_] n)
+  clojure.lang.Seqable
+  (seq [_]
+    ;; for code that still wants a sequence of [x y] points
+    (when (pos? n)
+      (map (fn [i]
+             (let [i (long i)]
+               [(rem i width) (quot i width)]))
+           (take n idxs)))))
+
+(defn packed-coords
+  "Wraps the first n packed indices of idxs, finding the bounding box."
+  [^ints idxs n width]
+  (let [n (long n)
+        width (long width)]
+    (loop [k 0
+           x-lo Long/MAX_VALUE, x-hi Long/MIN_VALUE
+           y-lo Long/MAX_VALUE, y-hi Long/MIN_VALUE]
+      (if (< k n)
+        (let [i (aget idxs k)
+              x (rem i width)
+              y (quot i width)]
+          (recur (inc k)
+                 (min x-lo x) (max x-hi x)
+                 (min y-lo y) (max y-hi y)))
+        (PackedCoords. idxs n width x-lo x-hi y-lo y-hi)))))
+
+(def ^ThreadLocal fill-scratch
+  (proxy [ThreadLocal] []
+    (initialValue [] [(int-buffer) (int-buffer)])))
+
+(defn scanline-fill!
+  "Scanline Floodfill as in `scanline`, but over packed pixel indices.
+   Fills 4-connected pixels that are unclaimed in the label buffer and
+   whose class (in the classes array) has the given bit set, claiming
+   them for id. Returns the filled pixels as PackedCoords."
+  [^ints classes bit labels id x0 y0 [min-x max-x] [min-y max-y]]
+  (let [bit (long bit)
+        id (long id)
+        min-x (long min-x), max-x (long max-x)
+        min-y (long min-y), max-y (long max-y)
+        ^uglyboids.vision.labels.LabelBuffer labels labels
+        w (.width labels)
+        [^IntBuffer stack ^IntBuffer out] (.get fill-scratch)
+        test (fn ^long [^long i]
+               (if (and (zero? (owner labels i))
+                        (not (zero? (bit-and (aget classes i) bit))))
+                 1 0))]
+    (.clear stack)
+    (.clear out)
+    (.add stack (xy-index w x0 y0))
+    (while (pos? (.size stack))
+      (let [p (.removeLast stack)
+            x (rem p w)
+            y (quot p w)
+            ;; follow y pixels up until find an edge
+            y1 (loop [y* y]
+                 (if (and (>= y* min-y) (== 1 (test (+ (* y* w) x))))
+                   (recur (dec y*))
+                   (inc y*)))]
+        (loop [y1 y1
+               span-left false
+               span-right false]
+          (let [i (+ (* y1 w) x)]
+            (when (and (<= y1 max-y) (== 1 (test i)))
+              (claim! labels i id)
+              (.add out i)
+              (let [left? (and (> x min-x) (== 1 (test (dec i))))
+                    right? (and (< x max-x) (== 1 (test (inc i))))]
+                (when (and left? (not span-left))
+                  (.add stack (dec i)))
+                (when (and right? (not span-right))
+                  (.add stack (inc i)))
+                (recur (inc y1)
+                       (if (> x min-x) left? span-left)
+                       (if (< x max-x) right? span-right))))))))
+    (packed-coords (.toArray out) (.size out) w)))
+
+(def ^ThreadLocal dilate-scratch
+  (proxy [ThreadLocal] []
+    (initialValue [] nil)))
+
+(defn dilate-packed
+  "The pixels of pc together with their 4-neighbours within bounds, as
+   PackedCoords. Duplicates are screened with a scratch label buffer."
+  [^PackedCoords pc [min-x max-x] [min-y max-y]]
+  (let [min-x (long min-x), max-x (long max-x)
+        min-y (long min-y), max-y (long max-y)
+        w (.width pc)
+        h (inc max-y)
+        seen (let [lb (.get dilate-scratch)]
+               (if (and lb
+                        (== w (.width ^uglyboids.vision.labels.LabelBuffer lb))
+                        (>= (.height ^uglyboids.vision.labels.LabelBuffer lb) h))
+                 (clear-labels! lb)
+                 (let [lb (label-buffer w h)]
+                   (.set dilate-scratch lb)
+                   lb)))
+        ^ints idxs (.idxs pc)
+        n (.n pc)
+        ^IntBuffer out (int-buffer (* 2 n))
+        visit (fn [^long i]
+                (when (zero? (owner seen i))
+                  (claim! seen i 1)
+                  (.add out i)))]
+    (dotimes [k n]
+      (let [i (aget idxs k)
+            x (rem i w)
+            y (quot i w)]
+        (visit i)
+        (when (< x max-x) (visit (inc i)))
+        (when (< y max-y) (visit (+ i w)))
+        (when (> x min-x) (visit (dec i)))
+        (when (> y min-y) (visit (- i w)))))
+    (packed-coords (.toArray out) (.size out) w)))
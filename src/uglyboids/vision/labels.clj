@@ -0,0 +1,50 @@
+(ns uglyboids.vision.labels
+  "Tracks which blob (by integer id) has claimed each pixel of a
+   screenshot. Backed by one flat int array indexed by y*width+x.")
+
+;; Labels are stored offset by a generation base: a cell is claimed
+;; only if its stored value is above the current base. Clearing the
+;; buffer just moves the base past any id that could have been stored,
+;; so it costs nothing until the int range runs out.
+
+(deftype LabelBuffer [^long width ^long height ^ints cells ^ints base])
+
+(defn label-buffer
+  [width height]
+  (LabelBuffer. width height (int-array (* width height)) (int-array 1)))
+
+(defn xy-index
+  "Packed index of pixel [x y] in a buffer of the given width."
+  ^long [^long width ^long x ^long y]
+  (+ (* y width) x))
+
+(defn owner
+  "Id of the blob that has claimed pixel index idx, or 0 if unclaimed."
+  ^long [^LabelBuffer lb ^long idx]
+  (let [v (aget ^ints (.cells lb) idx)
+        b (aget ^ints (.base lb) 0)]
+    (if (> v b) (- v b) 0)))
+
+(defn claim!
+  "Assign pixel index idx to blob id (which must be positive)."
+  [^LabelBuffer lb ^long idx ^long id]
+  (aset ^ints (.cells lb) idx (unchecked-int (+ id (aget ^ints (.base lb) 0)))))
+
+(defn release!
+  "Mark pixel index idx as unclaimed."
+  [^LabelBuffer lb ^long idx]
+  (aset ^ints (.cells lb) idx (aget ^ints (.base lb) 0)))
+
+(defn clear-labels!
+  "Unclaim every pixel. Ids are at most one per pixel, so advancing
+   the base by the pixel count invalidates everything stored so far."
+  [^LabelBuffer lb]
+  (let [^ints base (.base lb)
+        span (* (.width lb) (.height lb))
+        b (aget base 0)]
+    (if (> (+ b (* 2 span)) Integer/MAX_VALUE)
+      ;; would overflow: do it the slow way, once every few thousand frames
+      (do (java.util.Arrays/fill ^ints (.cells lb) (int 0))
+          (aset base 0 (int 0)))
+      (aset base 0 (unchecked-int (+ b span))))
+    lb))
@@ -0,0 +1,101 @@
+(ns uglyboids.vision.scene-cache
+  "Scenes cached by an exact hash of the part of the screenshot that
+   vision looks at, so that a state seen before (a restart, a retry)
+   skips the vision pipeline. Scenes are kept apart by the
+   *segmentation* they were found with: the modes find the same blobs,
+   but number and order them differently.
+   Persisted under *cache-dir* when that is set (it is nil, memory
+   only, by default); that and *capacity* are read when the cache is
+   built: at first use, or by reset-cache!."
+  (:use [uglyboids.vision :only [scene-from-image scene-from-pixels
+                                 *segmentation* fitting-stats
+                                 min-x max-x min-y max-y pixel-buf]]
+        [uglyboids.physics-params :only [px-width px-height]]
+        [uglyboids.vision.classify :only [frame-pixels]])
+  (:require [uglyboids.cache :as cache])
+  (:import (java.awt.image BufferedImage)))
+
+;; bump when vision output changes, so old persisted scenes are ignored
+(def scene-version 1)
+
+(def ^:dynamic *cache-dir*
+  "Directory to persist scenes under, such as \"cache/scenes/\", or nil."
+  nil)
+
+(def ^:dynamic *capacity* 64)
+
+(defn pixels-hash
+  "64-bit FNV-1a hash of the pixels in the vision region, as hex, of
+   packed RGB pixels of the given row width."
+  [^ints px width]
+  (let [width (long width)
+        y1 (long max-y)
+        x0 (long min-x)
+        x1 (long max-x)]
+    (loop [y (long min-y)
+           h -3750763034362895579]
+      (if (<= y y1)
+        (let [row (* y width)]
+          (recur (inc y)
+                 (long (loop [x x0
+                              h h]
+                         (if (<= x x1)
+                           (recur (inc x)
+                                  (unchecked-multiply (bit-xor h (aget px (+ row x)))
+                                                      1099511628211))
+                           h)))))
+        (Long/toHexString h)))))
+
+(defn raster-hash
+  "pixels-hash of an image, as the frame vision sees."
+  [^BufferedImage img]
+  (pixels-hash (frame-pixels img pixel-buf px-width px-height) px-width))
+
+(defonce ^:private current-cache (atom nil))
+
+(defn reset-cache!
+  "Replaces the cache with an empty one of *capacity* entries, persisted
+   under *cache-dir* as bound now (entries already there are found
+   again). Returns the new cache."
+  []
+  (let [c (cache/cache *capacity* *cache-dir*)]
+    (reset! current-cache c)
+    c))
+
+(defn- scene-cache
+  "The cache, built from the current bindings on first use."
+  []
+  (or @current-cache
+      (locking current-cache
+        (or @current-cache (reset-cache!)))))
+
+(defn- cached-scene
+  "The cached scene for hash under the current settings, otherwise
+   (scene-fn), which is cached unless it is not in play or some shape
+   fitting ran out of time (so that its fallback shapes are not kept)."
+  [hash scene-fn]
+  (let [k (str "v" scene-version "-" (name *segmentation*) "-" hash)
+        c (scene-cache)]
+    (or (cache/lookup c k)
+        (let [scene (scene-fn)]
+          (when (and (= :in-play (:state scene))
+                     (zero? (:timed-out @fitting-stats 0)))
+            (cache/store! c k scene))
+          scene))))
+
+(defn scene-for-image
+  "The scene for a screenshot, from the cache if it has been seen
+   before, otherwise from (scene-fn img). Only in-play scenes are
+   cached, since the others are transient screens; see cached-scene."
+  ([img]
+     (scene-for-image img scene-from-image))
+  ([img scene-fn]
+     (cached-scene (raster-hash img) #(scene-fn img))))
+
+(defn scene-for-pixels
+  "As scene-for-image, for a frame of packed RGB pixels (see
+   uglyboids.vision/raw-pixels)."
+  ([pixels]
+     (scene-for-pixels pixels scene-from-pixels))
+  ([pixels scene-fn]
+     (cached-scene (pixels-hash pixels px-width) #(scene-fn pixels))))
@@ -1,5 +1,7 @@
 (ns uglyboids.vision.shape-detection
-  (:require clojure.set))
+  (:require clojure.set)
+  (:use [uglyboids.vision.floodfill :only [dilate-packed]])
+  (:import (uglyboids.vision.floodfill PackedCoords)))
 
 (def ^:const ^{:doc "Pi (180 degrees)."} PI (. Math PI))
 (def ^:const ^{:doc "2 Pi (360 degrees)."} TWOPI (* PI 2.0))
@@ -57,23 +59,26 @@
 
 (defn bounding-box
   [coords]
-  (let [[x0 y0] (first coords)]
-    (loop [x-lower x0
-           y-lower y0
-           x-upper x0
-           y-upper y0
-           pts coords]
-      (if (seq pts)
-        (let [[x y] (first pts)
-              x (int x)
-              y (int y)]
-          (recur (min x-lower x)
-                 (min y-lower y)
-                 (max x-upper x)
-                 (max y-upper y)
-                 (next pts)))
-        ;; return:
-        [[x-lower y-lower] [x-upper y-upper]]))))
+  (if (instance? PackedCoords coords)
+    (let [^PackedCoords pc coords]
+      [[(.x-lo pc) (.y-lo pc)] [(.x-hi pc) (.y-hi pc)]])
+    (let [[x0 y0] (first coords)]
+      (loop [x-lower x0
+             y-lower y0
+             x-upper x0
+             y-upper y0
+             pts coords]
+        (if (seq pts)
+          (let [[x y] (first pts)
+                x (int x)
+                y (int y)]
+            (recur (min x-lower x)
+                   (min y-lower y)
+                   (max x-upper x)
+                   (max y-upper y)
+                   (next pts)))
+          ;; return:
+          [[x-lower y-lower] [x-upper y-upper]])))))
 
 (defn neighbours
   [[x y] [min-x max-x] [min-y max-y]]
@@ -92,8 +97,10 @@
 
 (defn dilate-blob
   [coords [min-x max-x] [min-y max-y]]
-  (into (set coords)
-        (mapcat #(neighbours % [min-x max-x] [min-y max-y]) coords)))
+  (if (instance? PackedCoords coords)
+    (dilate-packed coords [min-x max-x] [min-y max-y])
+    (into (set coords)
+          (mapcat #(neighbours % [min-x max-x] [min-y max-y]) coords))))
 
 (defn each-edge-points
   "Return a sequence of points which are on each edge of a shape in
@@ -132,6 +139,124 @@ bottom if pixel origin is at top-left."
            :top    (nnil (map-indexed to-points-tb top-ys))
            :bottom (nnil (map-indexed to-points-tb bot-ys))})))))
 
+(defn edge-extents
+  "The extents that each-edge-points finds, in one pass over packed
+   coords: the least and greatest x of each row, and the least and
+   greatest y of each column (the latter dropped to ground level as
+   there), as int arrays [left right bottom top] indexed from y-lo or
+   x-lo. Rows and columns without points hold Integer/MAX_VALUE in
+   left and bottom, Integer/MIN_VALUE in right and top."
+  [^PackedCoords pc [x-lo x-hi] [y-lo y-hi] ground-level]
+  (let [x-lo (long x-lo)
+        y-lo (long y-lo)
+        y-hi (long y-hi)
+        gl (long ground-level)
+        gl-ok (min y-hi (max y-lo gl))
+        rng-x (inc (- (long x-hi) x-lo))
+        rng-y (inc (- y-hi y-lo))
+        left (int-array rng-y Integer/MAX_VALUE)
+        right (int-array rng-y Integer/MIN_VALUE)
+        bot (int-array rng-x Integer/MAX_VALUE)
+        top (int-array rng-x Integer/MIN_VALUE)
+        ^ints idxs (.idxs pc)
+        width (.width pc)]
+    (dotimes [k (.n pc)]
+      (let [i (aget idxs k)
+            x (rem i width)
+            y (quot i width)
+            iy (- y y-lo)
+            ix (- x x-lo)
+            ;; drop bottom edge to ground level
+            yb (if (< (Math/abs (- y gl)) 25)
+                 gl-ok y)]
+        (when (< x (aget left iy)) (aset left iy (int x)))
+        (when (> x (aget right iy)) (aset right iy (int x)))
+        (when (< y (aget bot ix)) (aset bot ix (int y)))
+        (when (> yb (aget top ix)) (aset top ix (int yb)))))
+    [left right bot top]))
+
+(deftype EdgePoints [^ints xs ^ints ys ^long n]
+  clojure.lang.Counted
+  (count [_] n)
+  clojure.lang.Seqable
+  (seq [_]
+    ;; for code that still wants a sequence of [x y] points
+    (when (pos? n)
+      (map (fn [i]
+             (let [i (long i)]
+               [(long (aget xs i)) (long (aget ys i))]))
+           (range n)))))
+
+(defn- packed-edge-points
+  "edge-points of packed coords, from edge-extents, as EdgePoints."
+  [pc [x-lo x-hi] [y-lo y-hi] ground-level]
+  (let [[^ints left ^ints right ^ints bot ^ints top]
+        (edge-extents pc [x-lo x-hi] [y-lo y-hi] ground-level)
+        x-lo (long x-lo)
+        y-lo (long y-lo)
+        rng-x (alength bot)
+        rng-y (alength left)
+        cap (* 2 (+ rng-x rng-y))
+        xs (int-array cap)
+        ys (int-array cap)
+        ;; screens out repeated points, as distinct does
+        seen (boolean-array (* rng-x rng-y))
+        add! (fn ^long [^long k ^long x ^long y]
+               (let [j (+ (* (- y y-lo) rng-x) (- x x-lo))]
+                 (if (aget seen j)
+                   k
+                   (do (aset seen j true)
+                       (aset xs k (int x))
+                       (aset ys k (int y))
+                       (inc k)))))
+        bot? (fn [^long ix] (not= Integer/MAX_VALUE (aget bot ix)))
+        right? (fn [^long iy] (not= Integer/MIN_VALUE (aget right iy)))
+        top? (fn [^long ix] (not= Integer/MIN_VALUE (aget top ix)))
+        left? (fn [^long iy] (not= Integer/MAX_VALUE (aget left iy)))
+        bot-first-y (long (aget bot (long (first (filter bot? (range rng-x))))))
+        bot-last-y (long (aget bot (long (last (filter bot? (range rng-x))))))
+        right-last-x (long (aget right (long (last (filter
+                                                   #(and (right? %)
+                                                         (>= (+ y-lo %) bot-last-y))
+                                                   (range rng-y))))))
+        top-last-y (long (aget top (long (first (filter
+                                                 #(and (top? %)
+                                                       (<= (+ x-lo %) right-last-x))
+                                                 (range rng-x))))))
+        ;; increasing x along bottom
+        k (loop [ix 0, k 0]
+            (if (< ix rng-x)
+              (recur (inc ix)
+                     (long (if (bot? ix) (add! k (+ x-lo ix) (aget bot ix)) k)))
+              k))
+        ;; increasing y along right, from the last y of bottom
+        k (loop [iy 0, k k]
+            (if (< iy rng-y)
+              (recur (inc iy)
+                     (long (if (and (right? iy) (>= (+ y-lo iy) bot-last-y))
+                             (add! k (aget right iy) (+ y-lo iy))
+                             k)))
+              k))
+        ;; decreasing x along top, from the last x of right
+        k (loop [ix (dec rng-x), k k]
+            (if (>= ix 0)
+              (recur (dec ix)
+                     (long (if (and (top? ix) (<= (+ x-lo ix) right-last-x))
+                             (add! k (+ x-lo ix) (aget top ix))
+                             k)))
+              k))
+        ;; decreasing y along left, from the last y of top
+        k (loop [iy (dec rng-y), k k]
+            (if (>= iy 0)
+              (recur (dec iy)
+                     (let [y (+ y-lo iy)]
+                       (long (if (and (left? iy) (<= y top-last-y)
+                                      (>= y bot-first-y))
+                               (add! k (aget left iy) y)
+                               k))))
+              k))]
+    (EdgePoints. xs ys k)))
+
 (defn edge-points
   "Return a sequence of all points which are on the edge of a shape:
 specifically the left-/right-most or top-/bottom-most points on each
@@ -140,65 +265,118 @@ counter-clockwise (assuming that increasing y is 'up'):
 * increasing x along :bottom
 * increasing y along :right STARTING from the last y from bottom, then
 * decreasing x along :top STARTING from the last x from right
-* decreasing y along :left STARTING from the last y from top"
+* decreasing y along :left STARTING from the last y from top
+For PackedCoords, the same points come as EdgePoints, from arrays."
   [coords [x-lo x-hi] [y-lo y-hi] ground-level]
-  (let [edges (each-edge-points coords [x-lo x-hi] [y-lo y-hi] ground-level)
-        bottom (:bottom edges)
-        bottom-last-y (second (last bottom))
-        right (filter (fn [[x y]] (>= y bottom-last-y))
-                      (:right edges))
-        right-last-x (first (last right))
-        top (filter (fn [[x y]] (<= x right-last-x))
-                    (reverse (:top edges)))
-        top-last-y (second (last top))
-        bottom-first-y (second (first bottom))
-        left (filter (fn [[x y]] (and (<= y top-last-y)
-                                      (>= y bottom-first-y)))
-                     (reverse (:left edges)))]
-    (distinct (concat bottom right top left))))
+  (if (instance? PackedCoords coords)
+    (packed-edge-points coords [x-lo x-hi] [y-lo y-hi] ground-level)
+    (let [edges (each-edge-points coords [x-lo x-hi] [y-lo y-hi] ground-level)
+          bottom (:bottom edges)
+          bottom-last-y (second (last bottom))
+          right (filter (fn [[x y]] (>= y bottom-last-y))
+                        (:right edges))
+          right-last-x (first (last right))
+          top (filter (fn [[x y]] (<= x right-last-x))
+                      (reverse (:top edges)))
+          top-last-y (second (last top))
+          bottom-first-y (second (first bottom))
+          left (filter (fn [[x y]] (and (<= y top-last-y)
+                                        (>= y bottom-first-y)))
+                       (reverse (:left edges)))]
+      (distinct (concat bottom right top left)))))
+
+(defn- polar-extrema
+  "The points of a segment, as segment-extrema returns them."
+  [near far maxima-only?]
+  (if maxima-only?
+    (list far)
+    (distinct (if (> (:ang far) (:ang near))
+                (list near far)
+                (list far near)))))
+
+(defn- packed-segment-extrema
+  "segment-extrema of EdgePoints: the squared distances and angles of
+   the extrema are kept in primitive arrays, one slot per segment, and
+   only the extrema become {:mag :ang} maps."
+  [^EdgePoints ep [cx cy] n-segments maxima-only?]
+  (let [cx (long cx)
+        cy (long cy)
+        n-seg (long n-segments)
+        seg-ang (double (/ TWOPI n-segments))
+        ^ints xs (.xs ep)
+        ^ints ys (.ys ep)
+        ;; squared distances, -1 where there is no point yet
+        far-m2 (long-array n-seg -1)
+        far-ang (double-array n-seg)
+        near-m2 (long-array n-seg -1)
+        near-ang (double-array n-seg)]
+    (dotimes [k (.n ep)]
+      (let [dx (- (aget xs k) cx)
+            dy (- (aget ys k) cy)
+            ang (Math/atan2 (double dy) (double dx))
+            mag2 (+ (* dx dx) (* dy dy))
+            iseg (mod (long (/ (+ ang PI) seg-ang)) n-seg)]
+        (when (or (neg? (aget far-m2 iseg))
+                  (> mag2 (aget far-m2 iseg)))
+          (aset far-m2 iseg mag2)
+          (aset far-ang iseg ang))
+        (when (and (> mag2 4) ;; ignore within 2px
+                   (or (neg? (aget near-m2 iseg))
+                       (< mag2 (aget near-m2 iseg))))
+          (aset near-m2 iseg mag2)
+          (aset near-ang iseg ang))))
+    (map (fn [i]
+           (let [i (long i)]
+             (if (neg? (aget near-m2 i))
+               (list)
+               (polar-extrema {:mag (Math/sqrt (aget near-m2 i))
+                               :ang (aget near-ang i)}
+                              {:mag (Math/sqrt (aget far-m2 i))
+                               :ang (aget far-ang i)}
+                              maxima-only?))))
+         (range n-seg))))
 
 (defn segment-extrema
   "Finds the nearest and furthest points from a center point in each
    angle segment. Returns a vector of length n-segments, each with 0
    to 2 points (0 points if no points were found in that angle
    segment) in local polar coordinates as {:mag :ang}.
-   Ordered by angle, from -pi to pi."
+   Ordered by angle, from -pi to pi. EdgePoints are scanned without
+   boxing (see packed-segment-extrema)."
   [edge-pts cent-pt n-segments
    & {:keys [maxima-only?] :or {maxima-only? false}}]
-  (let [seg-ang (/ TWOPI n-segments)]
-    (loop [pts (seq edge-pts)
-           seg-extrema (vec (repeat n-segments
-                                    {:far nil :near nil}))]
-      (if (seq pts)
-        (let [pt (first pts)
-              dxy (v-sub pt cent-pt)
-              ang (v-angle dxy)
-              mag2 (v-mag2 dxy) ;; distance squared
-              pt-polar {:mag mag2 :ang ang}
-              iseg (mod (int (quot (+ ang PI) seg-ang)) n-segments)]
-          (recur (next pts)
-                 (update-in seg-extrema [iseg]
-                            (fn [{:keys [far near]}]
-                              (let [is-far? (or (nil? far)
-                                                (> mag2 (:mag far)))
-                                    is-near? (and (> mag2 4) ;; ignore within 2px
-                                                  (or (nil? near)
-                                                      (< mag2 (:mag near))))]
-                                {:far (if is-far? pt-polar far)
-                                 :near (if is-near? pt-polar near)})))))
-        ;; return from loop:
-        (map (fn [{:keys [far near]}]
-               ;; we know: both near and far will be nil, or both not.
-               (if (nil? near)
-                 (list)
-                 (let [near (update-in near [:mag] #(Math/sqrt %))
-                       far (update-in far [:mag] #(Math/sqrt %))]
-                   (if maxima-only?
-                     (list far)
-                     (distinct (if (> (:ang far) (:ang near))
-                                 (list near far)
-                                 (list far near)))))))
-             seg-extrema)))))
+  (if (instance? EdgePoints edge-pts)
+    (packed-segment-extrema edge-pts cent-pt n-segments maxima-only?)
+    (let [seg-ang (/ TWOPI n-segments)]
+      (loop [pts (seq edge-pts)
+             seg-extrema (vec (repeat n-segments
+                                      {:far nil :near nil}))]
+        (if (seq pts)
+          (let [pt (first pts)
+                dxy (v-sub pt cent-pt)
+                ang (v-angle dxy)
+                mag2 (v-mag2 dxy) ;; distance squared
+                pt-polar {:mag mag2 :ang ang}
+                iseg (mod (int (quot (+ ang PI) seg-ang)) n-segments)]
+            (recur (next pts)
+                   (update-in seg-extrema [iseg]
+                              (fn [{:keys [far near]}]
+                                (let [is-far? (or (nil? far)
+                                                  (> mag2 (:mag far)))
+                                      is-near? (and (> mag2 4) ;; ignore within 2px
+                                                    (or (nil? near)
+                                                        (< mag2 (:mag near))))]
+                                  {:far (if is-far? pt-polar far)
+                                   :near (if is-near? pt-polar near)})))))
+          ;; return from loop:
+          (map (fn [{:keys [far near]}]
+                 ;; we know: both near and far will be nil, or both not.
+                 (if (nil? near)
+                   (list)
+                   (polar-extrema (update-in near [:mag] #(Math/sqrt %))
+                                  (update-in far [:mag] #(Math/sqrt %))
+                                  maxima-only?)))
+               seg-extrema))))))
 
 (defn collinear-d?
   "Determine whether point p1 is on a line between points p0 and
@@ -357,16 +535,45 @@ for (n-1,0,1) and the last is for (n-2,n-1,0)."
               (recur (next vv) (conj n-vv v))))))
       n-vv)))
 
+(defn- nearest-furthest
+  "Indices of the edge points nearest and furthest from cent-pt, each
+   with the point relative to cent-pt: [near-i near-pt far-i far-pt].
+   Ties go to the later point."
+  [edge-pts cent-pt]
+  (if (instance? EdgePoints edge-pts)
+    (let [^EdgePoints ep edge-pts
+          ^ints xs (.xs ep)
+          ^ints ys (.ys ep)
+          [cx cy] cent-pt
+          cx (long cx)
+          cy (long cy)
+          rel (fn [^long k] [(- (aget xs k) cx) (- (aget ys k) cy)])
+          n (.n ep)]
+      (loop [k 0
+             near-i 0, near-d2 Long/MAX_VALUE
+             far-i 0, far-d2 -1]
+        (if (< k n)
+          (let [dx (- (aget xs k) cx)
+                dy (- (aget ys k) cy)
+                d2 (+ (* dx dx) (* dy dy))
+                near? (<= d2 near-d2)
+                far? (>= d2 far-d2)]
+            (recur (inc k)
+                   (if near? k near-i) (if near? d2 near-d2)
+                   (if far? k far-i) (if far? d2 far-d2)))
+          [near-i (rel near-i) far-i (rel far-i)])))
+    (let [lpts (map #(v-sub % cent-pt) edge-pts)
+          [near-i near-pt] (apply min-key (fn [[i pt]] (v-mag2 pt))
+                                  (map-indexed vector lpts))
+          [far-i far-pt] (apply max-key (fn [[i pt]] (v-mag2 pt))
+                                (map-indexed vector lpts))]
+      [near-i near-pt far-i far-pt])))
+
 (defn find-vertices-tri-quad
   [edge-pts cent-pt type]
   (let [
         n (count edge-pts)
-        lpts (map #(v-sub % cent-pt) edge-pts)
-        [near-i near-pt] (apply min-key (fn [[i pt]] (v-mag2 pt))
-                                (map-indexed vector lpts))
-        [far-i far-pt] (apply max-key (fn [[i pt]] (v-mag2 pt))
-                              (map-indexed vector lpts))
-        far-pt (apply max-key v-mag2 lpts)
+        [near-i near-pt far-i far-pt] (nearest-furthest edge-pts cent-pt)
         far-flip-pt (mapv - far-pt)
         near-flip-pt (mapv - near-pt)
 ;        near-opp-pt (nth (mod (+ near-i (quot n 2)) n) lpts)
@@ -0,0 +1,81 @@
+(ns uglyboids.vision.tiles
+  "Finds which square tiles of a frame have changed since the previous
+   frame, by comparing packed pixels directly.")
+
+(deftype TileMask [^long size ^long x0 ^long y0 ^long nx ^long ny
+                   ^booleans dirty])
+
+(defn diff-tiles
+  "Compares two frames of packed RGB pixels (row-major, the given
+   width) over the inclusive region, in square tiles of side size.
+   Returns a TileMask of the tiles with any differing pixel."
+  [^ints pixels ^ints prev width size [min-x max-x] [min-y max-y]]
+  (let [width (long width)
+        size (long size)
+        min-x (long min-x)
+        max-x (long max-x)
+        min-y (long min-y)
+        max-y (long max-y)
+        nx (inc (quot (- max-x min-x) size))
+        ny (inc (quot (- max-y min-y) size))
+        dirty (boolean-array (* nx ny))]
+    (loop [y min-y]
+      (when (<= y max-y)
+        (let [row (* y width)
+              trow (* nx (quot (- y min-y) size))]
+          (dotimes [tx nx]
+            (let [t (+ trow tx)]
+              ;; once a tile is dirty its other rows need no checking
+              (when-not (aget dirty t)
+                (let [x0 (+ min-x (* tx size))
+                      x1 (min max-x (+ x0 size -1))]
+                  (loop [i (+ row x0)]
+                    (when (<= i (+ row x1))
+                      (if (== (aget pixels i) (aget prev i))
+                        (recur (inc i))
+                        (aset dirty t true))))))))
+          (recur (inc y)))))
+    (TileMask. size min-x min-y nx ny dirty)))
+
+(defn dirty-count
+  ^long [^TileMask tm]
+  (let [^booleans dirty (.dirty tm)]
+    (loop [i 0 n 0]
+      (if (< i (alength dirty))
+        (recur (inc i) (if (aget dirty i) (inc n) n))
+        n))))
+
+(defn dirty-fraction
+  [^TileMask tm]
+  (/ (double (dirty-count tm)) (* (.nx tm) (.ny tm))))
+
+(defn region-clean?
+  "True when no dirty tile overlaps the inclusive region."
+  [^TileMask tm [x0 x1] [y0 y1]]
+  (let [size (.size tm)
+        nx (.nx tm)
+        ny (.ny tm)
+        ^booleans dirty (.dirty tm)
+        tile-range (fn [lo hi origin n]
+                     [(max 0 (quot (- lo origin) size))
+                      (min (dec n) (quot (- hi origin) size))])
+        [tx0 tx1] (tile-range x0 x1 (.x0 tm) nx)
+        [ty0 ty1] (tile-range y0 y1 (.y0 tm) ny)]
+    (not-any? (fn [[tx ty]] (aget dirty (+ (* ty nx) tx)))
+              (for [ty (range ty0 (inc ty1))
+                    tx (range tx0 (inc tx1))]
+                [tx ty]))))
+
+(defn dirty-regions
+  "The dirty tiles as inclusive [[x0 x1] [y0 y1]] regions, clipped to
+   the compared region."
+  [^TileMask tm [min-x max-x] [min-y max-y]]
+  (let [size (.size tm)
+        nx (.nx tm)
+        ^booleans dirty (.dirty tm)]
+    (for [t (range (alength dirty))
+          :when (aget dirty t)
+          :let [x0 (+ (.x0 tm) (* size (rem t nx)))
+                y0 (+ (.y0 tm) (* size (quot t nx)))]]
+      [[x0 (min max-x (+ x0 size -1))]
+       [y0 (min max-y (+ y0 size -1))]])))
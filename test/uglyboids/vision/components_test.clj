@@ -0,0 +1,90 @@
+(ns uglyboids.vision.components-test
+  "Component labelling against the flood fill it replaces, on frames
+   where blobs of different types touch along colors both accept."
+  (:use clojure.test
+        [uglyboids.vision :only [identify-shapes *segmentation*
+                                 *incremental* *vision-threads*]]
+        [uglyboids.vision.params :only [object-params]]
+        [uglyboids.physics-params :only [px-width px-height ground-level]])
+  (:import (java.awt Color)
+           (java.awt.image BufferedImage)
+           (java.util Random)))
+
+(def palette
+  "Every color of every type, and some browns that several accept."
+  (vec (concat (for [p (vals object-params)
+                     [r g b] (:colors p)]
+                 (Color. (int r) (int g) (int b)))
+               [(Color. 48 23 8) (Color. 210 150 60) (Color. 200 140 50)])))
+
+(defn- random-frame
+  "Sky and ground, with n rectangles and ovals in random palette colors."
+  [seed n]
+  (let [rnd (Random. seed)
+        img (BufferedImage. px-width px-height BufferedImage/TYPE_3BYTE_BGR)
+        g (.createGraphics img)
+        [sr sg sb] (first (:colors (object-params :sky)))
+        [gr gg gb] (first (:colors (object-params :ground)))]
+    (doto g
+      (.setColor (Color. (int sr) (int sg) (int sb)))
+      (.fillRect 0 0 px-width px-height)
+      (.setColor (Color. (int gr) (int gg) (int gb)))
+      (.fillRect 0 ground-level px-width (- px-height ground-level)))
+    (dotimes [_ n]
+      (.setColor g (palette (.nextInt rnd (count palette))))
+      (let [x (+ 5 (.nextInt rnd 800))
+            y (+ 150 (.nextInt rnd 420))
+            w (+ 4 (.nextInt rnd 40))
+            h (+ 4 (.nextInt rnd 30))]
+        (if (.nextBoolean rnd)
+          (.fillRect g x y w h)
+          (.fillOval g x y w h))))
+    (.dispose g)
+    img))
+
+(defn- knock-out
+  "A copy of img with a patch painted over in sky."
+  [^BufferedImage img]
+  (let [out (BufferedImage. (.getWidth img) (.getHeight img) (.getType img))
+        g (.createGraphics out)
+        [r g* b] (first (:colors (object-params :sky)))]
+    (doto g
+      (.drawImage img 0 0 nil)
+      (.setColor (Color. (int r) (int g*) (int b)))
+      (.fillRect 290 380 60 80)
+      (.dispose))
+    out))
+
+(defn- blob-pixels
+  "The blobs found, each as its type and set of pixels."
+  [blobs]
+  (set (for [b blobs]
+         [(:type b) (set (seq (:coords b)))])))
+
+(defn- segment
+  [img mode]
+  (binding [*segmentation* mode
+            *vision-threads* 3]
+    (blob-pixels (identify-shapes img))))
+
+(deftest same-blobs-test
+  (doseq [seed (range 4)
+          :let [img (random-frame seed 400)
+                flood (segment img :floodfill)]]
+    (testing (str "frame " seed)
+      ;; so that the frame has some flood filled again
+      (is (some :shared (binding [*segmentation* :components]
+                          (identify-shapes img))))
+      (is (= flood (segment img :components)))
+      (is (= flood (segment img :parallel))))))
+
+(deftest incremental-test
+  (doseq [seed (range 4)
+          :let [img (random-frame seed 400)
+                next-img (knock-out img)]]
+    (testing (str "frame " seed)
+      (is (= (segment next-img :floodfill)
+             (binding [*segmentation* :components
+                       *incremental* true]
+               (identify-shapes img)
+               (blob-pixels (identify-shapes next-img))))))))
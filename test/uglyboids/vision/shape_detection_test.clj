@@ -0,0 +1,97 @@
+(ns uglyboids.vision.shape-detection-test
+  "The array path of shape detection, taken for PackedCoords, against
+   the sequence path it replaces, on drawn blobs of each kind."
+  (:use clojure.test
+        uglyboids.vision.shape-detection
+        [uglyboids.vision.floodfill :only [packed-coords]]
+        [uglyboids.physics-params :only [px-width ground-level]]))
+
+(defn- blob
+  "The pixels in a box for which (in? x y) holds, as PackedCoords, with
+   their x and y ranges."
+  [[x0 x1] [y0 y1] in?]
+  (let [pts (for [y (range y0 (inc y1))
+                  x (range x0 (inc x1))
+                  :when (in? x y)]
+              [x y])
+        idxs (int-array (for [[x y] pts] (+ (* y px-width) x)))]
+    {:coords (packed-coords idxs (alength idxs) px-width)
+     :x-range [(apply min (map first pts)) (apply max (map first pts))]
+     :y-range [(apply min (map second pts)) (apply max (map second pts))]}))
+
+(def blobs
+  {:circle (blob [385 415] [285 315]
+                 (fn [x y] (<= (+ (* (- x 400) (- x 400))
+                                  (* (- y 300) (- y 300)))
+                               144)))
+   :rect (blob [300 339] [500 511] (constantly true))
+   :strut (blob [500 507] [400 469] (constantly true))
+   :triangle (blob [600 640] [400 440]
+                   (fn [x y] (<= (* 2 (Math/abs (long (- x 620)))) (- y 400))))
+   :ground (blob [700 740] [588 609]
+                 (fn [x y] (or (>= y 596) (<= 710 x 730))))})
+
+(defn- extents-as-edges
+  "The arrays of edge-extents as the point lists of each-edge-points."
+  [[left right bot top] [x-lo _] [y-lo _]]
+  (let [pts (fn [a none f]
+              (for [[i v] (map-indexed vector a)
+                    :when (not= v none)]
+                (f i v)))
+        row (fn [i x] [x (+ i y-lo)])
+        col (fn [i y] [(+ i x-lo) y])]
+    {:left (pts left Integer/MAX_VALUE row)
+     :right (pts right Integer/MIN_VALUE row)
+     :bottom (pts bot Integer/MAX_VALUE col)
+     :top (pts top Integer/MIN_VALUE col)}))
+
+(deftest edge-extents-test
+  (doseq [[kind {:keys [coords x-range y-range]}] blobs
+          gl [ground-level 700]]
+    (testing (str kind " with ground level " gl)
+      (is (= (each-edge-points (seq coords) x-range y-range gl)
+             (extents-as-edges (edge-extents coords x-range y-range gl)
+                               x-range y-range))))))
+
+(deftest edge-points-test
+  (doseq [[kind {:keys [coords x-range y-range]}] blobs]
+    (testing kind
+      (is (= (edge-points (seq coords) x-range y-range ground-level)
+             (seq (edge-points coords x-range y-range ground-level)))))))
+
+(defn- mid-pt
+  [[x-lo x-hi] [y-lo y-hi]]
+  [(quot (+ x-lo x-hi) 2) (quot (+ y-lo y-hi) 2)])
+
+(deftest segment-extrema-test
+  (doseq [[kind {:keys [coords x-range y-range]}] blobs
+          n-segments [4 24]
+          maxima-only? [false true]
+          :let [cent (mid-pt x-range y-range)
+                packed (edge-points coords x-range y-range ground-level)
+                points (seq packed)]]
+    (testing (str kind " in " n-segments " segments")
+      (is (= (segment-extrema points cent n-segments
+                              :maxima-only? maxima-only?)
+             (segment-extrema packed cent n-segments
+                              :maxima-only? maxima-only?))))))
+
+(deftest nearest-furthest-test
+  (let [nearest-furthest @#'uglyboids.vision.shape-detection/nearest-furthest]
+    (doseq [[kind {:keys [coords x-range y-range]}] blobs
+            :let [cent (mid-pt x-range y-range)
+                  packed (edge-points coords x-range y-range ground-level)]]
+      (testing kind
+        (is (= (nearest-furthest (seq packed) cent)
+               (nearest-furthest packed cent)))))))
+
+(deftest shape-from-coords-test
+  (doseq [[kind {:keys [coords x-range y-range]}] blobs
+          convex? [true false]
+          :let [fit #(shape-from-coords % convex? x-range y-range
+                                        ground-level :wood)
+                packed (fit coords)]]
+    (testing (str kind (if convex? " as convex" " as polygon"))
+      (is (= (fit (seq coords)) packed))
+      (when (= kind :circle)
+        (is (= :circle (:shape packed)))))))